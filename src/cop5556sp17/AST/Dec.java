@@ -9,6 +9,7 @@ public class Dec extends ASTNode
     final Token ident;
     public Type.TypeName typeName;
     public int slot;
+    public boolean carried;
 
     public Type.TypeName getTypeName()
     {
@@ -25,6 +26,21 @@ public class Dec extends ASTNode
         this.slot = slot;
     }
 
+    /**
+     * @return true if the value of this variable is kept from one execution of its block to the
+     * next, instead of being reset to null, so that it can be reused as a destination. Set by
+     * LivenessVisitor.
+     */
+    public boolean isCarried()
+    {
+        return carried;
+    }
+
+    public void setCarried(boolean carried)
+    {
+        this.carried = carried;
+    }
+
     public Dec(Token firstToken, Token ident)
     {
         super(firstToken);
@@ -6,6 +6,7 @@ public class FilterOpChain extends ChainElem
 {
 
     final Tuple tuple;
+    public Dec dest;
 
     public FilterOpChain(Token firstToken, Tuple arg)
     {
@@ -18,6 +19,20 @@ public class FilterOpChain extends ChainElem
         return tuple;
     }
 
+    /**
+     * @return the image variable whose previous value may be overwritten with the result of this
+     * op, or null if the op has to allocate a new image. Set by LivenessVisitor.
+     */
+    public Dec getDest()
+    {
+        return dest;
+    }
+
+    public void setDest(Dec dest)
+    {
+        this.dest = dest;
+    }
+
     @Override
     public String toString()
     {
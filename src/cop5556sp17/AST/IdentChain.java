@@ -16,6 +16,22 @@ public class IdentChain extends ChainElem
         this.dec = dec;
     }
 
+    /**
+     * True if the image this stores over is referenced by nothing else, so that it can be
+     * handed back to PLPRuntimeImagePool. Set by LivenessVisitor.
+     */
+    public boolean retiresPrevious;
+
+    public boolean isRetiresPrevious()
+    {
+        return retiresPrevious;
+    }
+
+    public void setRetiresPrevious(boolean retiresPrevious)
+    {
+        this.retiresPrevious = retiresPrevious;
+    }
+
     public IdentChain(Token firstToken)
     {
         super(firstToken);
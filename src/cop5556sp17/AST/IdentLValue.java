@@ -27,6 +27,22 @@ public class IdentLValue extends ASTNode
         this.dec = dec;
     }
 
+    /**
+     * True if the image this stores over is referenced by nothing else, so that it can be
+     * handed back to PLPRuntimeImagePool. Set by LivenessVisitor.
+     */
+    public boolean retiresPrevious;
+
+    public boolean isRetiresPrevious()
+    {
+        return retiresPrevious;
+    }
+
+    public void setRetiresPrevious(boolean retiresPrevious)
+    {
+        this.retiresPrevious = retiresPrevious;
+    }
+
     public IdentLValue(Token firstToken)
     {
         super(firstToken);
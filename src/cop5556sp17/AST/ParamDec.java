@@ -11,6 +11,22 @@ public class ParamDec extends Dec
         this.slot = -1;
     }
 
+    /**
+     * True if this is a file or url the program reads as a whole image and never writes, so that
+     * decoding it can start before the program runs. Set by LivenessVisitor.
+     */
+    public boolean prefetched;
+
+    public boolean isPrefetched()
+    {
+        return prefetched;
+    }
+
+    public void setPrefetched(boolean prefetched)
+    {
+        this.prefetched = prefetched;
+    }
+
     @Override
     public String toString()
     {
@@ -85,6 +85,9 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
     // Declaration to start, end label map
     HashMap<Dec, Pair<Label, Label>> locals = new HashMap<>();
 
+    // Image variables whose value is kept across loop iterations
+    List<Dec> carried = new ArrayList<>();
+
     @Override
     public Object visitProgram(Program program, Object arg) throws Exception
     {
@@ -92,6 +95,8 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
 //        cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
 //        cw = new ClassWriter(0);
         className = program.getName();
+        program.visit(new LivenessVisitor(), null);
+        collectCarried(program.getB());
         classDesc = "L" + className + ";";
         String sourceFileName = ( String ) arg;
         ArrayList<ParamDec> params = program.getParams();
@@ -188,10 +193,41 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
         mv.visitLabel(startRun);
         CodeGenUtils.genPrint(DEVEL, mv, "\nProgram\t\t: entering run");
 
-        // Pass 1 to indicate the first free local var slot
-        program.getB().visit(this, 1);
+        // Image variables that keep their value across loop iterations get slots of their own,
+        // initialized once, so that no other variable can leave an image behind in them
+        int firstSlot = 1;
+        for( Dec dec : carried )
+        {
+            dec.setSlot(firstSlot++);
+            mv.visitInsn(ACONST_NULL);
+            mv.visitVarInsn(ASTORE, dec.getSlot());
+        }
+
+        // Writes may still be encoding in the background, and sources may have been prefetched
+        // for nothing, however run ends
+        Label startBody = new Label();
+        Label endBody = new Label();
+        Label finallyBody = new Label();
+        mv.visitTryCatchBlock(startBody, endBody, finallyBody, null);
+        mv.visitLabel(startBody);
+
+        // Pass the first free local var slot
+        program.getB().visit(this, firstSlot);
+        // Inside the range, which must not be empty; flushAfter then has nothing left to wait for
+        mv.visitMethodInsn(
+            INVOKESTATIC, PLPRuntimePrefetch.JVMName, "discard", PLPRuntimePrefetch.discardSig, false);
+        mv.visitMethodInsn(
+            INVOKESTATIC, PLPRuntimeImageWriter.JVMName, "flush", PLPRuntimeImageWriter.flushSig, false);
+        mv.visitLabel(endBody);
         mv.visitInsn(RETURN);
 
+        mv.visitLabel(finallyBody);
+        mv.visitMethodInsn(
+            INVOKESTATIC, PLPRuntimePrefetch.JVMName, "discard", PLPRuntimePrefetch.discardSig, false);
+        mv.visitMethodInsn(
+            INVOKESTATIC, PLPRuntimeImageWriter.JVMName, "flushAfter", PLPRuntimeImageWriter.flushAfterSig, false);
+        mv.visitInsn(ATHROW);
+
         Label endRun = new Label();
         mv.visitLabel(endRun);
         mv.visitLocalVariable("this", classDesc, null, startRun, endRun, 0);
@@ -217,6 +253,31 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
         return cw.toByteArray();
     }
 
+    /**
+     * Collects the variables marked by LivenessVisitor as carried across loop iterations
+     */
+    private void collectCarried(Block block)
+    {
+        for( Dec dec : block.getDecs() )
+        {
+            if( dec.isCarried() )
+            {
+                carried.add(dec);
+            }
+        }
+        for( Statement stmt : block.getStatements() )
+        {
+            if( stmt instanceof IfStatement )
+            {
+                collectCarried((( IfStatement ) stmt).getB());
+            }
+            else if( stmt instanceof WhileStatement )
+            {
+                collectCarried((( WhileStatement ) stmt).getB());
+            }
+        }
+    }
+
     @Override
     public Object visitParamDec(ParamDec paramDec, Object arg) throws Exception
     {
@@ -266,6 +327,18 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
 
         mv.visitFieldInsn(PUTFIELD, className, paramDec.getIdent().getText(), paramDec.getTypeName().getJVMTypeDesc());
 
+        if( paramDec.isPrefetched() )
+        {
+            // Start decoding the image now, so it may be ready by the time run reads it
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, paramDec.getIdent().getText(), paramDec.getTypeName().getJVMTypeDesc());
+            mv.visitMethodInsn(
+                INVOKESTATIC, PLPRuntimePrefetch.JVMName, "prefetch",
+                paramDec.getTypeName() == TypeName.FILE ? PLPRuntimePrefetch.prefetchFileSig
+                    : PLPRuntimePrefetch.prefetchURLSig, false
+            );
+        }
+
         CodeGenUtils.genPrint(
             DEVEL, mv, String.format(
                 "\nParamDec\t: initialized parameter %s<%s>", paramDec.getIdent().getText(),
@@ -338,6 +411,12 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
             )
         );
 
+        if( declaration.isCarried() )
+        {
+            // Its slot was assigned, and set to null, at the start of run
+            return null;
+        }
+
         int slot = ( Integer ) arg;
         declaration.setSlot(slot);
 
@@ -441,8 +520,14 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
                     break;
                 case IMAGE:
                     // Pre: Expression must have evaluated to something of type:image
+                    // copyImage is copy-on-write, so this does not copy any pixels yet
                     mv.visitMethodInsn(
                         INVOKESTATIC, PLPRuntimeImageOps.JVMName, "copyImage", PLPRuntimeImageOps.copyImageSig, false);
+                    if( identX.isRetiresPrevious() )
+                    {
+                        genRetire(declaration);
+                    }
+                    mv.visitVarInsn(ASTORE, declaration.getSlot());
                     break;
             }
         }
@@ -495,6 +580,16 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
         Expression e0 = binaryExpression.getE0();
         Expression e1 = binaryExpression.getE1();
 
+        // Trees of image arithmetic are evaluated by one runtime call instead of one call per
+        // operator. The two operand arrays live in the first free local slots, so this needs a slot
+        // number, which chain tuples do not pass down (they only ever hold integers anyway).
+        if( arg instanceof Integer && isImageArithmetic(binaryExpression)
+            && (isImageArithmetic(e0) || isImageArithmetic(e1)) )
+        {
+            visitFusedImageExpression(binaryExpression, ( Integer ) arg);
+            return null;
+        }
+
         e0.visit(this, arg);
         e1.visit(this, arg);
 
@@ -883,6 +978,113 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
         return null;
     }
 
+    /**
+     * @return true if e is an image valued +, -, *, / or % expression
+     */
+    private static boolean isImageArithmetic(Expression e)
+    {
+        return e instanceof BinaryExpression && e.getType() == TypeName.IMAGE;
+    }
+
+    /**
+     * Generates code for a tree of image arithmetic as a single call to PLPRuntimeImageOps.eval.
+     * The operands are evaluated in the same order as they would be by visitBinaryExpression,
+     * into an image array in slot and an int array in slot + 1.
+     */
+    private void visitFusedImageExpression(BinaryExpression expression, int slot) throws Exception
+    {
+        int[] counts = new int[2];
+        countFusedOperands(expression, counts);
+
+        mv.visitLdcInsn(counts[0]);
+        mv.visitTypeInsn(ANEWARRAY, PLPRuntimeImageIO.BufferedImageClassName);
+        mv.visitVarInsn(ASTORE, slot);
+        mv.visitLdcInsn(counts[1]);
+        mv.visitIntInsn(NEWARRAY, T_INT);
+        mv.visitVarInsn(ASTORE, slot + 1);
+
+        StringBuilder program = new StringBuilder();
+        genFusedOperands(expression, slot, new int[2], program);
+
+        // stack: program, images, ints
+        mv.visitLdcInsn(program.toString().trim());
+        mv.visitVarInsn(ALOAD, slot);
+        mv.visitVarInsn(ALOAD, slot + 1);
+        mv.visitMethodInsn(INVOKESTATIC, PLPRuntimeImageOps.JVMName, "eval", PLPRuntimeImageOps.evalSig, false);
+    }
+
+    // counts[0] = number of image operands, counts[1] = number of integer operands
+    private void countFusedOperands(Expression e, int[] counts)
+    {
+        if( isImageArithmetic(e) )
+        {
+            countFusedOperands((( BinaryExpression ) e).getE0(), counts);
+            countFusedOperands((( BinaryExpression ) e).getE1(), counts);
+        }
+        else
+        {
+            counts[e.getType() == TypeName.IMAGE ? 0 : 1]++;
+        }
+    }
+
+    // Evaluates each operand into its array and appends the postfix form of e to program
+    private void genFusedOperands(Expression e, int slot, int[] next, StringBuilder program) throws Exception
+    {
+        if( !isImageArithmetic(e) )
+        {
+            if( e.getType() == TypeName.IMAGE )
+            {
+                mv.visitVarInsn(ALOAD, slot);
+                mv.visitLdcInsn(next[0]);
+                e.visit(this, slot);
+                mv.visitInsn(AASTORE);
+                program.append(" i").append(next[0]++);
+            }
+            else
+            {
+                mv.visitVarInsn(ALOAD, slot + 1);
+                mv.visitLdcInsn(next[1]++);
+                e.visit(this, slot + 2);
+                mv.visitInsn(IASTORE);
+            }
+            return;
+        }
+
+        BinaryExpression be = ( BinaryExpression ) e;
+        Expression e0 = be.getE0();
+        Expression e1 = be.getE1();
+        // Index of the integer operand of *, / and %, whichever side it is on
+        int scalar = next[1];
+        genFusedOperands(e0, slot, next, program);
+        if( e1.getType() != TypeName.IMAGE )
+        {
+            scalar = next[1];
+        }
+        genFusedOperands(e1, slot, next, program);
+
+        switch( be.getOp().kind )
+        {
+            case PLUS:
+                program.append(" +");
+                break;
+            case MINUS:
+                program.append(" -");
+                break;
+            case TIMES:
+                program.append(" *").append(scalar);
+                break;
+            case DIV:
+                program.append(" /").append(scalar);
+                break;
+            case MOD:
+                program.append(" %").append(scalar);
+                break;
+            default:
+                // This should've been caught during TypeChecking!
+                break;
+        }
+    }
+
     @Override
     public Object visitIfStatement(IfStatement ifStatement, Object arg) throws Exception
     {
@@ -950,6 +1152,19 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
         ChainElem chElem = binaryChain.getE1();
         Scanner.Token op = binaryChain.getArrow();
 
+        List<FilterOpChain> filters = filterRun(binaryChain);
+        if( filters.size() > 1 )
+        {
+            genFilterRun(binaryChain, filters);
+            return null;
+        }
+
+        if( isShrunkRead(ch, chElem, op) )
+        {
+            genShrunkRead(( IdentChain ) ch, ( ImageOpChain ) chElem);
+            return null;
+        }
+
         /**
          * Visit left chain, and tell the chain that it's on the right side
          */
@@ -971,11 +1186,209 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
         {
             chElem.visit(this, Boolean.valueOf(true));
         }
+        else if( isTemporary(ch) && makesImage(chElem, op) )
+        {
+            // Nothing refers to the intermediate image once the op has read it
+            mv.visitInsn(DUP);
+            chElem.visit(this, op);
+            mv.visitInsn(SWAP);
+            mv.visitMethodInsn(
+                INVOKESTATIC, PLPRuntimeImagePool.JVMName, "retire", PLPRuntimeImagePool.retireSig, false);
+        }
         else
         {
             //  ( ch instanceof FilterOpChain )
             chElem.visit(this, op);
         }
+
+        /**
+         * An in-place gray may have to write to a fresh image when the source shares its pixels,
+         * so store whatever it returned back into the variable it was applied to
+         */
+        Dec source = inPlaceSource(ch);
+        if( op.isKind(Kind.BARARROW) && chElem.getFirstToken().isKind(Kind.OP_GRAY) && source != null )
+        {
+            mv.visitInsn(DUP);
+            mv.visitVarInsn(ASTORE, source.getSlot());
+        }
+        return null;
+    }
+
+    /**
+     * @return true if chElem shrinks the image read from the file or url ch
+     */
+    private static boolean isShrunkRead(Chain ch, ChainElem chElem, Token op)
+    {
+        return ch instanceof IdentChain && (ch.getTypeName() == TypeName.FILE || ch.getTypeName() == TypeName.URL)
+            && chElem instanceof ImageOpChain && chElem.getFirstToken().isKind(Kind.KW_SHRINK)
+            && op.isKind(Kind.ARROW);
+    }
+
+    /**
+     * Generates the read of source and the shrink as one call, see PLPRuntimeImageIO.decodeShrunk.
+     * Stack: ... -> (BufferedImage | ...)
+     */
+    private void genShrunkRead(IdentChain source, ImageOpChain shrink) throws Exception
+    {
+        Token var = source.getFirstToken();
+        mv.visitIntInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, var.getText(), source.getTypeName().getJVMTypeDesc());
+        shrink.getArg().visit(this, null);
+        if( source.getTypeName() == TypeName.FILE )
+        {
+            mv.visitMethodInsn(
+                INVOKESTATIC, PLPRuntimeImageIO.className, "readFromFile", PLPRuntimeImageIO.readFromFileShrinkDesc,
+                false
+            );
+        }
+        else
+        {
+            mv.visitMethodInsn(
+                INVOKESTATIC, PLPRuntimeImageIO.className, "readFromURL", PLPRuntimeImageIO.readFromURLShrinkSig,
+                false
+            );
+        }
+    }
+
+    /**
+     * @return the filter ops applied with -> at the end of chain, first to last
+     */
+    private static List<FilterOpChain> filterRun(Chain chain)
+    {
+        List<FilterOpChain> filters = new ArrayList<>();
+        while( chain instanceof BinaryChain && (( BinaryChain ) chain).getE1() instanceof FilterOpChain
+            && (( BinaryChain ) chain).getArrow().isKind(Kind.ARROW) )
+        {
+            filters.add(0, ( FilterOpChain ) (( BinaryChain ) chain).getE1());
+            chain = (( BinaryChain ) chain).getE0();
+        }
+        return filters;
+    }
+
+    /**
+     * Generates the filter ops at the end of chain as one call to PLPRuntimePipeline.filter,
+     * which streams the rows through all of them without the images in between.
+     * Stack: ... -> (BufferedImage | ...)
+     */
+    private void genFilterRun(BinaryChain chain, List<FilterOpChain> filters) throws Exception
+    {
+        Chain source = chain;
+        for( int i = 0; i < filters.size(); i++ )
+        {
+            source = (( BinaryChain ) source).getE0();
+        }
+        if( source instanceof IdentChain )
+        {
+            source.visit(this, Boolean.valueOf(false));
+        }
+        else
+        {
+            source.visit(this, chain.getArrow());
+        }
+        boolean temporary = isTemporary(source);
+        if( temporary )
+        {
+            mv.visitInsn(DUP);
+        }
+
+        // Stack: stages | dest | source
+        genDest(filters.get(filters.size() - 1));
+        mv.visitLdcInsn(2 * filters.size());
+        mv.visitIntInsn(NEWARRAY, T_INT);
+        for( int i = 0; i < filters.size(); i++ )
+        {
+            FilterOpChain filter = filters.get(i);
+            List<Expression> args = filter.getArg().getExprList();
+            int stage;
+            switch( filter.getFirstToken().kind )
+            {
+                case OP_BLUR:
+                    stage = args.isEmpty() ? PLPRuntimePipeline.BLUR : PLPRuntimePipeline.BLUR_RADIUS;
+                    break;
+                case OP_CONVOLVE:
+                    stage = PLPRuntimePipeline.CONVOLVE;
+                    break;
+                default:
+                    stage = PLPRuntimePipeline.GRAY;
+                    break;
+            }
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn(2 * i);
+            mv.visitLdcInsn(stage);
+            mv.visitInsn(IASTORE);
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn(2 * i + 1);
+            if( args.isEmpty() )
+            {
+                mv.visitInsn(ICONST_0);
+            }
+            else
+            {
+                filter.getArg().visit(this, null);
+            }
+            mv.visitInsn(IASTORE);
+        }
+        mv.visitMethodInsn(
+            INVOKESTATIC, PLPRuntimePipeline.JVMName, "filter", PLPRuntimePipeline.filterSig, false);
+
+        if( temporary )
+        {
+            // Nothing refers to the image the run started from once it has been read
+            mv.visitInsn(SWAP);
+            mv.visitMethodInsn(
+                INVOKESTATIC, PLPRuntimeImagePool.JVMName, "retire", PLPRuntimeImagePool.retireSig, false);
+        }
+    }
+
+    /**
+     * Hands the image held by dec back to the pool, unless it is the one on top of the stack.
+     * Stack: (next | ...) -> (next | ...)
+     */
+    private void genRetire(Dec dec)
+    {
+        mv.visitVarInsn(ALOAD, dec.getSlot());
+        mv.visitMethodInsn(
+            INVOKESTATIC, PLPRuntimeImagePool.JVMName, "retire", PLPRuntimeImagePool.retireSig, false);
+    }
+
+    /**
+     * @return true if ch evaluates to a new image that no variable holds
+     */
+    private static boolean isTemporary(Chain ch)
+    {
+        if( !(ch instanceof BinaryChain) )
+        {
+            return false;
+        }
+        BinaryChain bc = ( BinaryChain ) ch;
+        return makesImage(bc.getE1(), bc.getArrow());
+    }
+
+    /**
+     * @return true if elem, applied with op, reads an image and makes a new one
+     */
+    private static boolean makesImage(ChainElem elem, Token op)
+    {
+        if( elem instanceof FilterOpChain )
+        {
+            return op.isKind(Kind.ARROW);
+        }
+        return elem instanceof ImageOpChain && elem.getFirstToken().isKind(Kind.KW_SCALE, Kind.KW_SHRINK);
+    }
+
+    /**
+     * @return the image variable whose value ch evaluates to, or null if it is a temporary
+     */
+    private static Dec inPlaceSource(Chain ch)
+    {
+        if( ch instanceof BinaryChain )
+        {
+            ch = (( BinaryChain ) ch).getE1();
+        }
+        if( ch instanceof IdentChain && ch.getTypeName() == TypeName.IMAGE )
+        {
+            return (( IdentChain ) ch).getDec();
+        }
         return null;
     }
 
@@ -1009,6 +1422,10 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
                     }
                     break;
                 case IMAGE:
+                    if( identChain.isRetiresPrevious() )
+                    {
+                        genRetire(identChain.getDec());
+                    }
                     // Stack top consumed, so DUP to be able to compose chains
                     mv.visitInsn(DUP);
                     mv.visitVarInsn(ASTORE, identChain.getDec().getSlot());
@@ -1099,21 +1516,31 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
 
         Token op = ( Token ) arg;
 
-        tuple.visit(this, arg);
-
         switch( tok.kind )
         {
             case OP_BLUR:
                 // Pre: stack = dest | source
-                mv.visitInsn(ACONST_NULL);
-                mv.visitMethodInsn(
-                    INVOKESTATIC, PLPRuntimeFilterOps.JVMName, "blurOp", PLPRuntimeFilterOps.opSig, false);
+                genDest(filterOpChain);
+                if( tuple.getExprList().isEmpty() )
+                {
+                    mv.visitMethodInsn(
+                        INVOKESTATIC, PLPRuntimeFilterOps.JVMName, "blurOp", PLPRuntimeFilterOps.opSig, false);
+                }
+                else
+                {
+                    // Stack: radius | dest | source
+                    tuple.visit(this, arg);
+                    mv.visitMethodInsn(
+                        INVOKESTATIC, PLPRuntimeFilterOps.JVMName, "blurOp", PLPRuntimeFilterOps.blurRadiusSig,
+                        false
+                    );
+                }
                 break;
             case OP_GRAY:
                 // Pre: stack = dest | source
                 if( op.isKind(Kind.ARROW) )
                 {
-                    mv.visitInsn(ACONST_NULL);
+                    genDest(filterOpChain);
                 }
                 else if( op.isKind(Kind.BARARROW) )
                 {
@@ -1124,7 +1551,7 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
                 break;
             case OP_CONVOLVE:
                 // Pre: stack = dest | source                
-                mv.visitInsn(ACONST_NULL);
+                genDest(filterOpChain);
                 mv.visitMethodInsn(
                     INVOKESTATIC, PLPRuntimeFilterOps.JVMName, "convolveOp", PLPRuntimeFilterOps.opSig, false);
                 break;
@@ -1132,6 +1559,23 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
         return null;
     }
 
+    /**
+     * Pushes the image a filter op may write its result into: the old value of the variable
+     * the result is stored to, if LivenessVisitor found it to be dead, and null otherwise
+     */
+    private void genDest(FilterOpChain filterOpChain)
+    {
+        Dec dest = filterOpChain.getDest();
+        if( dest != null )
+        {
+            mv.visitVarInsn(ALOAD, dest.getSlot());
+        }
+        else
+        {
+            mv.visitInsn(ACONST_NULL);
+        }
+    }
+
     @Override
     public Object visitFrameOpChain(FrameOpChain frameOpChain, Object arg) throws Exception
     {
@@ -1189,7 +1633,15 @@ public class CodeGenVisitor implements ASTVisitor, Opcodes
                 break;
             case KW_SCALE:
                 mv.visitMethodInsn(
-                    INVOKESTATIC, PLPRuntimeImageOps.JVMName, "scale", PLPRuntimeImageOps.scaleSig, false);
+                    INVOKESTATIC, PLPRuntimeScaler.JVMName, "scale", PLPRuntimeScaler.scaleSig, false);
+                break;
+            case KW_SHRINK:
+                mv.visitMethodInsn(
+                    INVOKESTATIC, PLPRuntimeScaler.JVMName, "shrink", PLPRuntimeScaler.shrinkSig, false);
+                break;
+            case KW_CROP:
+                mv.visitMethodInsn(
+                    INVOKESTATIC, PLPRuntimeImageOps.JVMName, "crop", PLPRuntimeImageOps.cropSig, false);
                 break;
         }
         return null;
@@ -7,16 +7,29 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class CodeGenVisitorTest
@@ -73,6 +86,61 @@ public class CodeGenVisitorTest
         System.out.println("wrote classfile to " + classFileName);
     }
 
+    /**
+     * An image of random pixels, the same for the same seed
+     */
+    private static BufferedImage randomImage(int w, int h, int type, long seed)
+    {
+        BufferedImage image = new BufferedImage(w, h, type);
+        Random random = new Random(seed);
+        int[] row = new int[w];
+        for( int y = 0; y < h; y++ )
+        {
+            for( int x = 0; x < w; x++ )
+            {
+                row[x] = random.nextInt();
+            }
+            PLPRuntimeRaster.writeRow(image, y, row, w);
+        }
+        return image;
+    }
+
+    /**
+     * A new temporary file, deleted when the tests exit. The suffix picks the format images are
+     * written in.
+     */
+    private static File tempFile(String suffix) throws IOException
+    {
+        File f = File.createTempFile("plp", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Writes image to a new temporary file, without logging it
+     */
+    private static File tempImage(BufferedImage image, String suffix) throws IOException
+    {
+        File f = tempFile(suffix);
+        PLPRuntimeImageWriter.write(image, f);
+        return f;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual)
+    {
+        int w = expected.getWidth();
+        assertEquals(w, actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        int[] expectedRow = new int[w];
+        int[] actualRow = new int[w];
+        for( int y = 0; y < expected.getHeight(); y++ )
+        {
+            PLPRuntimeRaster.readRow(expected, y, expectedRow, w);
+            PLPRuntimeRaster.readRow(actual, y, actualRow, w);
+            assertArrayEquals("row " + y, expectedRow, actualRow);
+        }
+    }
+
     /**
      * This class encapsulates the behaviour for mapping programs
      * in the source langugae to Java8 per the specifications given
@@ -1470,6 +1538,1175 @@ public class CodeGenVisitorTest
 //        testClassMetaData(classNode, progName, 1);
     }
 
+    @Test
+    public void testFusedImageExpression() throws Exception
+    {
+        // Fused trees with two or more integer operands, literal and variable, each next to the
+        // same tree assigned one op at a time
+        String[][] cases = {
+            {"b <- a * 3 / k;", "t <- a * 3;", "t <- t / k;"},
+            {"b <- a / 4 * k;", "t <- a / 4;", "t <- t * k;"},
+            {"b <- k * a % 7;", "t <- k * a;", "t <- t % 7;"},
+            {"b <- (a + a) * 3 / 2 - a % k;", "t <- a + a;", "t <- t * 3;", "t <- t / 2;", "c <- a % k;",
+                "t <- t - c;"},
+        };
+        BufferedImage image = randomImage(70, 50, BufferedImage.TYPE_INT_RGB, 4);
+        File in = tempImage(image, ".png");
+        Gen gen = new Gen();
+        for( String backend : new String[]{"packed", "scalar"} )
+        {
+            PLPRuntimeKernels.setBackend(backend);
+            try
+            {
+                for( int i = 0; i < cases.length; i++ )
+                {
+                    String progName = String.format("prog%d%s%d", new Date().getTime(), backend, i);
+                    String[] lines = new String[cases[i].length + 7];
+                    lines[0] = "image a";
+                    lines[1] = "image b";
+                    lines[2] = "image c";
+                    lines[3] = "image t";
+                    lines[4] = "f -> a;";
+                    System.arraycopy(cases[i], 0, lines, 5, cases[i].length);
+                    lines[lines.length - 2] = "b -> g;";
+                    lines[lines.length - 1] = "t -> h;";
+                    String input = gen.prog(progName, "file f, file g, file h, integer k", gen.block(lines));
+
+                    File fused = tempFile(".png");
+                    File steps = tempFile(".png");
+                    String[] args = {in.getPath(), fused.getPath(), steps.getPath(), "5"};
+                    byte[] klass = test(input, null, args, false);
+                    assertSamePixels(ImageIO.read(steps), ImageIO.read(fused));
+                }
+            }
+            finally
+            {
+                PLPRuntimeKernels.setBackend("packed");
+            }
+        }
+    }
+
+    @Test
+    public void testImageAssignmentInLoop() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "file f, file g, file h",
+            gen.block(
+                "image a",
+                "image b",
+                "integer i",
+                "f -> a;",
+                "i <- 0;",
+                "while(i < 2)",
+                gen.block("b <- a;", "b |-> gray;", "i <- i + 1;"),
+                "a -> g;",
+                "b -> h;"
+            )
+        );
+
+        BufferedImage image = randomImage(60, 40, BufferedImage.TYPE_INT_RGB, 5);
+        File in = tempImage(image, ".png");
+        File g = tempFile(".png");
+        File h = tempFile(".png");
+        String[] args = {in.getPath(), g.getPath(), h.getPath()};
+        String expOut = "readFromFile(" + args[0] + ")" +
+            "0" +
+            "copyImage" + "grayOp" + "1" +
+            "copyImage" + "grayOp" + "2" +
+            "write(" + args[1] + ")" + "write(" + args[2] + ")";
+
+        byte[] klass = test(input, expOut, args, false);
+        // Graying b in place leaves the image it was assigned from as it was
+        assertSamePixels(image, ImageIO.read(g));
+        assertSamePixels(pointOp(PLPRuntimePointOps.GRAY, image, null, 0, BufferedImage.TYPE_INT_RGB), ImageIO.read(h));
+    }
+
+    @Test
+    public void testFilterDestinationReuse() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "file f, file g, file h",
+            gen.block(
+                "image a",
+                "image b",
+                "image d",
+                "integer i",
+                "f -> a;",
+                "i <- 0;",
+                "while(i < 2)",
+                gen.block(
+                    "image c",
+                    "a -> blur -> c;",
+                    "if(i == 0)",
+                    gen.block("b <- c;"),
+                    "c -> convolve -> d;",
+                    "d -> gray -> c;",
+                    "a <- a / 2;",
+                    "i <- i + 1;"
+                ),
+                "b -> g;",
+                "d -> h;"
+            )
+        );
+
+        BufferedImage image = randomImage(60, 40, BufferedImage.TYPE_INT_RGB, 6);
+        File in = tempImage(image, ".png");
+        File g = tempFile(".png");
+        File h = tempFile(".png");
+        String[] args = {in.getPath(), g.getPath(), h.getPath()};
+        String expOut = "readFromFile(" + args[0] + ")" +
+            "0" +
+            "blurOp" + "copyImage" + "convolve" + "grayOp" + "div" + "copyImage" + "1" +
+            "blurOp" + "convolve" + "grayOp" + "div" + "copyImage" + "2" +
+            "write(" + args[1] + ")" + "write(" + args[2] + ")";
+
+        byte[] klass = test(input, expOut, args, false);
+        // The second blur does not go into the image b still holds
+        BufferedImage source = ImageIO.read(in);
+        assertSamePixels(PLPRuntimeFilterOps.blurOp(source, null), ImageIO.read(g));
+        BufferedImage half = pointOp(PLPRuntimePointOps.DIV, source, null, 2, BufferedImage.TYPE_INT_RGB);
+        BufferedImage blurred = PLPRuntimeFilterOps.blurOp(half, null);
+        assertSamePixels(PLPRuntimeFilterOps.convolveOp(blurred, null), ImageIO.read(h));
+    }
+
+    @Test
+    public void testPooledIntermediateImages() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "file f, file g, file h",
+            gen.block(
+                "image a",
+                "image b",
+                "image c",
+                "integer i",
+                "f -> a;",
+                "i <- 0;",
+                "while(i < 2)",
+                gen.block("a -> blur -> gray -> convolve -> b;", "c <- b;", "b <- b - a;", "i <- i + 1;"),
+                "c -> g;",
+                "b -> h;"
+            )
+        );
+
+        BufferedImage image = randomImage(60, 40, BufferedImage.TYPE_INT_RGB, 7);
+        File in = tempImage(image, ".png");
+        File g = tempFile(".png");
+        File h = tempFile(".png");
+        String[] args = {in.getPath(), g.getPath(), h.getPath()};
+        String expOut = "readFromFile(" + args[0] + ")" +
+            "0" +
+            "blurOp" + "grayOp" + "convolve" + "copyImage" + "sub" + "copyImage" + "1" +
+            "blurOp" + "grayOp" + "convolve" + "copyImage" + "sub" + "copyImage" + "2" +
+            "write(" + args[1] + ")" + "write(" + args[2] + ")";
+
+        byte[] klass = test(input, expOut, args, false);
+        // The image c shares is not handed back to the pool when b is overwritten
+        BufferedImage source = ImageIO.read(in);
+        BufferedImage filtered = PLPRuntimeFilterOps.convolveOp(
+            PLPRuntimeFilterOps.grayOp(PLPRuntimeFilterOps.blurOp(source, null), null), null);
+        assertSamePixels(filtered, ImageIO.read(g));
+        assertSamePixels(pointOp(PLPRuntimePointOps.SUB, filtered, source, 0, BufferedImage.TYPE_INT_RGB),
+            ImageIO.read(h));
+    }
+
+    @Test
+    public void testBlurRadius() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "url u, integer r",
+            gen.block(
+                "image a",
+                "image b",
+                "u -> a;",
+                "a -> blur(r) -> blur -> b;"
+            )
+        );
+
+        String[] args = {BEAR_PIC_URL, "7"};
+        String expOut = "getURL(" + args[0] + ")" +
+            "readFromURL(" + args[0] + ")" +
+            "blurOp" + "blurOp";
+
+        byte[] klass = test(input, expOut, args, false);
+    }
+
+    @Test
+    public void testBlurLargeRadius() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "url u, integer r",
+            gen.block(
+                "image a",
+                "image b",
+                "u -> a;",
+                "a -> blur(r) -> b;",
+                "b -> blur(r * 2) -> gray -> a;"
+            )
+        );
+
+        String[] args = {BEAR_PIC_URL, "2000"};
+        String expOut = "getURL(" + args[0] + ")" +
+            "readFromURL(" + args[0] + ")" +
+            "blurOp" + "blurOp" + "grayOp";
+
+        byte[] klass = test(input, expOut, args, false);
+    }
+
+    @Test
+    public void testFilterChainPipeline() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "url u, integer r",
+            gen.block(
+                "image a",
+                "image b",
+                "u -> a;",
+                "a -> blur -> convolve -> gray -> b;",
+                "a -> scale(2) -> gray -> blur(r) |-> gray -> b;",
+                "b -> convolve -> blur -> a -> blur -> b;"
+            )
+        );
+
+        String[] args = {BEAR_PIC_URL, "3"};
+        String expOut = "getURL(" + args[0] + ")" +
+            "readFromURL(" + args[0] + ")" +
+            "blurOp" + "convolve" + "grayOp" +
+            "scale" + "grayOp" + "blurOp" + "grayOp" +
+            "convolve" + "blurOp" + "blurOp";
+
+        byte[] klass = test(input, expOut, args, false);
+    }
+
+    @Test
+    public void testGrayInPlace() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "file f, file g, file h, file k",
+            gen.block(
+                "image a",
+                "image b",
+                "f -> a;",
+                "b <- a;",
+                "a |-> gray;",
+                "a -> g;",
+                "b -> h;",
+                "b |-> blur -> gray -> a;",
+                "a -> k;"
+            )
+        );
+
+        BufferedImage image = randomImage(60, 40, BufferedImage.TYPE_INT_RGB, 8);
+        File in = tempImage(image, ".png");
+        File g = tempFile(".png");
+        File h = tempFile(".png");
+        File k = tempFile(".png");
+        String[] args = {in.getPath(), g.getPath(), h.getPath(), k.getPath()};
+        String expOut = "readFromFile(" + args[0] + ")" +
+            "copyImage" + "grayOp" + "write(" + args[1] + ")" + "write(" + args[2] + ")" +
+            "blurOp" + "grayOp" + "write(" + args[3] + ")";
+
+        BufferedImage gray = pointOp(PLPRuntimePointOps.GRAY, image, null, 0, BufferedImage.TYPE_INT_RGB);
+        BufferedImage blurred = pointOp(PLPRuntimePointOps.GRAY, PLPRuntimeFilterOps.blurOp(ImageIO.read(in), null),
+            null, 0, BufferedImage.TYPE_INT_RGB);
+        for( boolean grayBytes : new boolean[]{false, true} )
+        {
+            PLPRuntimeFilterOps.setGrayBytes(grayBytes);
+            try
+            {
+                PLPRuntimeLog.initLog();
+                byte[] klass = test(input, expOut, args, false);
+            }
+            finally
+            {
+                PLPRuntimeFilterOps.setGrayBytes(false);
+            }
+            // Graying a in place leaves b, which was assigned from it, as it was
+            assertSamePixels(gray, ImageIO.read(g));
+            assertSamePixels(image, ImageIO.read(h));
+            assertSamePixels(blurred, ImageIO.read(k));
+        }
+    }
+
+    @Test
+    public void testPointOpsMatchReference() throws Exception
+    {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY};
+        // Powers of two take shifts and masks in the packed kernels, other divisors a table
+        int[] divisors = {1, 2, 4, 7, 37, 128, 256, 512, 1000, -1, -3, -4};
+        int[][] args = {{0}, {0}, {0, 1, 3, 300, -2}, divisors, divisors, {0}};
+        for( String backend : new String[]{"packed", "scalar"} )
+        {
+            PLPRuntimeKernels.setBackend(backend);
+            try
+            {
+                for( int op = PLPRuntimePointOps.ADD; op <= PLPRuntimePointOps.GRAY; op++ )
+                {
+                    for( int arg : args[op] )
+                    {
+                        for( int type : types )
+                        {
+                            checkPointOp(op, arg, type);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                PLPRuntimeKernels.setBackend("packed");
+            }
+        }
+    }
+
+    // Checks op on images of type against pointOp, into several destinations
+    private static void checkPointOp(int op, int arg, int type)
+    {
+        boolean binary = op == PLPRuntimePointOps.ADD || op == PLPRuntimePointOps.SUB;
+        // Same layout throughout, gray into levels, and a mix only the general path takes
+        int[][] layouts = {{type, type, type}, {type, type, BufferedImage.TYPE_BYTE_GRAY},
+            {type, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_ARGB}};
+        for( int[] layout : layouts )
+        {
+            BufferedImage a = randomImage(37, 23, layout[0], op);
+            BufferedImage b = binary ? randomImage(37, 23, layout[1], op + 10) : null;
+            BufferedImage expected = pointOp(op, a, b, arg, layout[2]);
+            BufferedImage dest = new BufferedImage(37, 23, layout[2]);
+            String message = "op " + op + " by " + arg + " on type " + layout[0] + " into type " + layout[2];
+            try
+            {
+                assertSamePixels(expected, PLPRuntimePointOps.apply(op, a, b, arg, dest, 37, 23));
+
+                // Views, whose rows start at an offset into the data
+                BufferedImage view = a.getSubimage(3, 2, 30, 20);
+                BufferedImage other = binary ? b.getSubimage(5, 1, 30, 20) : null;
+                BufferedImage target = new BufferedImage(34, 22, layout[2]).getSubimage(4, 2, 30, 20);
+                expected = pointOp(op, view, other, arg, layout[2]);
+                assertSamePixels(expected, PLPRuntimePointOps.apply(op, view, other, arg, target, 30, 20));
+
+                if( layout[2] == layout[0] )
+                {
+                    expected = pointOp(op, a, b, arg, layout[2]);
+                    assertSamePixels(expected, PLPRuntimePointOps.apply(op, a, b, arg, a, 37, 23));
+                }
+            }
+            catch( AssertionError e )
+            {
+                throw new AssertionError(message, e);
+            }
+        }
+    }
+
+    /**
+     * The point op applied pixel by pixel, one channel at a time, into a new image of the type
+     */
+    private static BufferedImage pointOp(int op, BufferedImage a, BufferedImage b, int arg, int type)
+    {
+        int w = a.getWidth();
+        int h = a.getHeight();
+        BufferedImage result = new BufferedImage(w, h, type);
+        int[] row = new int[w];
+        int[] other = new int[w];
+        for( int y = 0; y < h; y++ )
+        {
+            PLPRuntimeRaster.readRow(a, y, row, w);
+            if( b != null )
+            {
+                PLPRuntimeRaster.readRow(b, y, other, w);
+            }
+            for( int x = 0; x < w; x++ )
+            {
+                int[] c = {(row[x] >> 16) & 0xFF, (row[x] >> 8) & 0xFF, row[x] & 0xFF};
+                int[] d = {(other[x] >> 16) & 0xFF, (other[x] >> 8) & 0xFF, other[x] & 0xFF};
+                if( op == PLPRuntimePointOps.GRAY )
+                {
+                    int gray = ( int ) (c[0] * 0.299) + ( int ) (c[1] * 0.587) + ( int ) (c[2] * 0.114);
+                    c = new int[]{gray, gray, gray};
+                }
+                for( int i = 0; i < 3; i++ )
+                {
+                    switch( op )
+                    {
+                        case PLPRuntimePointOps.ADD:
+                            c[i] += d[i];
+                            break;
+                        case PLPRuntimePointOps.SUB:
+                            c[i] -= d[i];
+                            break;
+                        case PLPRuntimePointOps.MUL:
+                            c[i] *= arg;
+                            break;
+                        case PLPRuntimePointOps.DIV:
+                            c[i] /= arg;
+                            break;
+                        case PLPRuntimePointOps.MOD:
+                            c[i] %= arg;
+                            break;
+                        default:
+                            break;
+                    }
+                    c[i] = Math.max(0, Math.min(255, c[i]));
+                }
+                row[x] = 0xFF000000 | c[0] << 16 | c[1] << 8 | c[2];
+            }
+            PLPRuntimeRaster.writeRow(result, y, row, w);
+        }
+        return result;
+    }
+
+    @Test
+    public void testScaleInLoop() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "url u",
+            gen.block(
+                "image a",
+                "integer i",
+                "u -> a;",
+                "i <- 0;",
+                "while(i < 2)",
+                gen.block("a -> scale(2) -> a;", "i <- i + 1;")
+            )
+        );
+
+        String[] args = {BEAR_PIC_URL};
+        String expOut = "getURL(" + args[0] + ")" +
+            "readFromURL(" + args[0] + ")" +
+            "0" +
+            "scale" + "1" +
+            "scale" + "2";
+
+        byte[] klass = test(input, expOut, args, false);
+    }
+
+    @Test
+    public void testShrink() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "url u",
+            gen.block(
+                "image a",
+                "image b",
+                "u -> shrink(4) -> a;",
+                "a -> shrink(3) -> gray -> b;"
+            )
+        );
+
+        String[] args = {BEAR_PIC_URL};
+        String expOut = "getURL(" + args[0] + ")" +
+            "readFromURL(" + args[0] + ")" +
+            "shrink" +
+            "shrink" + "grayOp";
+
+        byte[] klass = test(input, expOut, args, false);
+    }
+
+    @Test
+    public void testFusedShrinkMatchesUnfused() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "file f, file fused, file unfused, integer n",
+            gen.block(
+                "image a",
+                "image b",
+                "f -> shrink(n) -> a -> fused;",
+                "f -> b;",
+                "b -> shrink(n) -> b -> unfused;"
+            )
+        );
+
+        // Sizes that most factors do not divide
+        File in = tempImage(randomImage(2100, 2050, BufferedImage.TYPE_INT_RGB, 19), ".png");
+        File fused = tempFile(".png");
+        File unfused = tempFile(".png");
+        for( int n : new int[]{1, 4, 6, 7, 9, 12} )
+        {
+            String[] args = {in.getPath(), fused.getPath(), unfused.getPath(), Integer.toString(n)};
+            byte[] klass = test(input, null, args, false);
+            assertSamePixels(ImageIO.read(unfused), ImageIO.read(fused));
+        }
+    }
+
+    @Test
+    public void testCrop() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "url u",
+            gen.block(
+                "image a",
+                "image b",
+                "integer w",
+                "integer x",
+                "u -> a;",
+                "a -> crop(10, 20, 30, 40) -> gray -> b;",
+                "b -> width -> w;",
+                "x <- w;"
+            )
+        );
+
+        String[] args = {BEAR_PIC_URL};
+        String expOut = "getURL(" + args[0] + ")" +
+            "readFromURL(" + args[0] + ")" +
+            "crop" + "grayOp" +
+            "30";
+
+        byte[] klass = test(input, expOut, args, false);
+    }
+
+    @Test
+    public void testOffHeapImages() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "url u",
+            gen.block(
+                "image a",
+                "image b",
+                "integer w",
+                "integer x",
+                "u -> a;",
+                "a -> blur -> gray -> b;",
+                "b -> scale(2) -> b;",
+                "b -> width -> w;",
+                "a -> width -> x;",
+                "x <- w / x;"
+            )
+        );
+
+        String[] args = {BEAR_PIC_URL};
+        String expOut = "getURL(" + args[0] + ")" +
+            "readFromURL(" + args[0] + ")" +
+            "blurOp" + "grayOp" +
+            "scale" +
+            "2";
+
+        PLPRuntimeOffHeap.setThreshold(1);
+        try
+        {
+            byte[] klass = test(input, expOut, args, false);
+        }
+        finally
+        {
+            PLPRuntimeOffHeap.setThreshold(0);
+        }
+    }
+
+    @Test
+    public void testOffHeapMatchesHeap() throws Exception
+    {
+        Map<String, Function<BufferedImage[], BufferedImage>> ops = new LinkedHashMap<>();
+        ops.put("blur", in -> PLPRuntimeFilterOps.blurOp(in[0], null));
+        ops.put("blur 4", in -> PLPRuntimeFilterOps.blurOp(in[0], null, 4));
+        ops.put("convolve", in -> PLPRuntimeFilterOps.convolveOp(in[0], null));
+        ops.put("gray", in -> PLPRuntimeFilterOps.grayOp(in[0], null));
+        ops.put("gray in place", in -> PLPRuntimeFilterOps.grayOp(in[0], in[0]));
+        ops.put("scale", in -> PLPRuntimeImageOps.scale(in[0], 3));
+        ops.put("shrink", in -> PLPRuntimeScaler.shrink(in[0], 3));
+        ops.put("add", in -> PLPRuntimeImageOps.add(in[0], in[1]));
+        ops.put("sub", in -> PLPRuntimeImageOps.sub(in[0], in[1]));
+        ops.put("mul", in -> PLPRuntimeImageOps.mul(in[0], 3));
+        ops.put("div", in -> PLPRuntimeImageOps.div(in[0], 3));
+        ops.put("mod", in -> PLPRuntimeImageOps.mod(in[0], 37));
+        ops.put("crop mul", in -> PLPRuntimeImageOps.mul(PLPRuntimeImageOps.crop(in[0], 5, 7, 20, 30), 2));
+        for( int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB} )
+        {
+            for( Map.Entry<String, Function<BufferedImage[], BufferedImage>> op : ops.entrySet() )
+            {
+                // Fresh inputs for each op, which may write into them
+                BufferedImage[] heap = {randomImage(61, 47, type, 1), randomImage(61, 47, type, 2)};
+                BufferedImage[] offHeap = {PLPRuntimeOffHeap.toOffHeap(heap[0]), PLPRuntimeOffHeap.toOffHeap(heap[1])};
+                assertTrue(PLPRuntimeOffHeap.isOffHeap(offHeap[0]));
+                BufferedImage expected = op.getValue().apply(heap);
+                BufferedImage actual = op.getValue().apply(offHeap);
+                try
+                {
+                    assertSamePixels(expected, actual);
+                }
+                catch( AssertionError e )
+                {
+                    throw new AssertionError(op.getKey() + " of type " + type, e);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapRelease() throws Exception
+    {
+        int[] row = new int[8];
+        // Shared pixels stay with the other images
+        BufferedImage shared = PLPRuntimeOffHeap.allocate(8, 4, false);
+        BufferedImage handle = PLPRuntimeCopyOnWrite.share(shared);
+        PLPRuntimeImagePool.release(shared);
+        PLPRuntimeRaster.readRow(handle, 0, row, 8);
+        PLPRuntimeRaster.readRow(shared, 0, row, 8);
+
+        BufferedImage image = PLPRuntimeOffHeap.allocate(8, 4, false);
+        PLPRuntimeImagePool.release(image);
+        try
+        {
+            PLPRuntimeRaster.readRow(image, 0, row, 8);
+            fail("read of a released image");
+        }
+        catch( IllegalStateException e )
+        {
+            // Detached rather than freed under the reader
+        }
+    }
+
+    @Test
+    public void testPAMRoundTrip() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "url u, file f",
+            gen.block(
+                "image a",
+                "image b",
+                "integer w",
+                "integer x",
+                "u -> a -> f;",
+                "f -> b;",
+                "b -> width -> w;",
+                "a -> width -> x;",
+                "x <- w - x;"
+            )
+        );
+
+        String[] args = {BEAR_PIC_URL, "bear.pam"};
+        String expOut = "getURL(" + args[0] + ")" +
+            "readFromURL(" + args[0] + ")" +
+            "write(" + args[1] + ")" +
+            "readFromFile(" + args[1] + ")" +
+            "0";
+
+        byte[] klass = test(input, expOut, args, false);
+    }
+
+    @Test
+    public void testPAMKeepsPixels() throws Exception
+    {
+        int[] types = {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_INT_ARGB};
+        int[] depths = {1, 3, 3, 4};
+        for( int i = 0; i < types.length; i++ )
+        {
+            // Widths whose headers need every length of padding
+            for( int w : new int[]{1, 7, 10, 130, 1001} )
+            {
+                BufferedImage image = randomImage(w, 9, types[i], w);
+                File f = tempImage(image, ".pam");
+                String header = new String(Files.readAllBytes(f.toPath()), StandardCharsets.ISO_8859_1);
+                assertTrue(header.startsWith("P7\n"));
+                assertTrue(header.contains("\nDEPTH " + depths[i] + "\n"));
+                assertEquals(0, (header.indexOf("ENDHDR\n") + "ENDHDR\n".length()) % 4);
+                assertTrue(PLPRuntimePAM.isPAM(f));
+                assertSamePixels(image, PLPRuntimePAM.read(f));
+            }
+        }
+        // Gray and alpha, which is read but never written
+        File f = tempFile(".pam");
+        byte[] header = "P7\nWIDTH 2\nHEIGHT 1\nDEPTH 2\nMAXVAL 255\nTUPLTYPE GRAYSCALE_ALPHA\nENDHDR\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] samples = {( byte ) 0x12, ( byte ) 0x80, ( byte ) 0xFE, ( byte ) 0x01};
+        byte[] bytes = Arrays.copyOf(header, header.length + samples.length);
+        System.arraycopy(samples, 0, bytes, header.length, samples.length);
+        Files.write(f.toPath(), bytes);
+        BufferedImage image = PLPRuntimePAM.read(f);
+        assertEquals(0x80121212, image.getRGB(0, 0));
+        assertEquals(0x01FEFEFE, image.getRGB(1, 0));
+    }
+
+    @Test
+    public void testImageCacheInLoop() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "file f",
+            gen.block(
+                "image a",
+                "integer i",
+                "i <- 0;",
+                "while(i < 2)",
+                gen.block("f -> a;", "a -> gray -> a;", "i <- i + 1;")
+            )
+        );
+
+        BufferedImage image = randomImage(300, 200, BufferedImage.TYPE_INT_RGB, 23);
+        File in = tempImage(image, ".png");
+        String[] args = {in.getPath()};
+        String expOut = "0" +
+            "readFromFile(" + args[0] + ")" + "grayOp" + "1" +
+            "readFromFile(" + args[0] + ")" + "grayOp" + "2";
+
+        PLPRuntimeImageCache.clear();
+        PLPRuntimeImageCache.setBudget(1 << 20);
+        try
+        {
+            byte[] klass = test(input, expOut, args, false);
+            // The second read is a handle on the first image, which the gray op did not change
+            assertEquals(1, PLPRuntimeImageCache.getHits());
+            assertEquals(1, PLPRuntimeImageCache.getMisses());
+            assertSamePixels(image, PLPRuntimeImageIO.load(in));
+        }
+        finally
+        {
+            PLPRuntimeImageCache.setBudget(0);
+            PLPRuntimeImageCache.clear();
+        }
+    }
+
+    @Test
+    public void testPrefetchedParams() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "file f1, file f2",
+            gen.block(
+                "image im",
+                "f1 -> im -> f2;"
+            )
+        );
+
+        BufferedImage image = randomImage(300, 200, BufferedImage.TYPE_INT_RGB, 24);
+        File in = tempImage(image, ".png");
+        File out = tempFile(".png");
+        String[] args = {in.getPath(), out.getPath()};
+        String expOut =
+            "readFromFile(" + args[0] + ")" +
+                "write(" + args[1] + ")";
+
+        PLPRuntimePrefetch.clear();
+        byte[] klass = test(input, expOut, args, false);
+        // Only f1 is read; f2 is written. The read waits for the prefetch and takes its image.
+        assertEquals(1, PLPRuntimePrefetch.getStarted());
+        assertEquals(1, PLPRuntimePrefetch.getUsed());
+        assertSamePixels(image, ImageIO.read(out));
+
+        input = gen.prog(
+            progName + "b",
+            "file f1, boolean b",
+            gen.block(
+                "image im",
+                "if(b)",
+                gen.block("f1 -> im;")
+            )
+        );
+
+        // A prefetch that is not taken does not outlive run
+        PLPRuntimePrefetch.clear();
+        PLPRuntimeLog.initLog();
+        klass = test(input, "", new String[]{in.getPath(), "false"}, false);
+        assertEquals(1, PLPRuntimePrefetch.getStarted());
+        assertEquals(0, PLPRuntimePrefetch.getUsed());
+        assertEquals(null, PLPRuntimePrefetch.take(in));
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception
+    {
+        String progName = String.format("prog%d", new Date().getTime());
+
+        Gen gen = new Gen();
+
+        String input = gen.prog(
+            progName,
+            "file f1, file f2",
+            gen.block(
+                "image im",
+                "f1 -> im -> f2;",
+                "im -> gray -> im;"
+            )
+        );
+
+        BufferedImage image = randomImage(300, 200, BufferedImage.TYPE_INT_RGB, 25);
+        File in = tempImage(image, ".png");
+        File out = tempFile(".png");
+        out.delete();
+        String[] args = {in.getPath(), out.getPath()};
+        String expOut =
+            "readFromFile(" + args[0] + ")" +
+                "write(" + args[1] + ")" +
+                "grayOp";
+
+        PLPRuntimeImageWriter.setWriteBehind(true);
+        try
+        {
+            byte[] klass = test(input, expOut, args, false);
+        }
+        finally
+        {
+            PLPRuntimeImageWriter.setWriteBehind(false);
+        }
+        // run waits for the write before it returns, and the gray op did not write into the
+        // image while it was queued
+        assertSamePixels(image, ImageIO.read(out));
+    }
+
+    @Test
+    public void testFFTConvolutionMatchesDirect() throws Exception
+    {
+        Random random = new Random(12);
+        for( int side : new int[]{13, 21} )
+        {
+            // Symmetric under rotation, as ConvolveOp rotates the kernel and PLPRuntimeConvolver
+            // does not; negative weights too, to saturate
+            float[] data = new float[side * side];
+            float sum = 0;
+            for( int i = 0; i <= data.length / 2; i++ )
+            {
+                data[i] = data[data.length - 1 - i] = random.nextFloat() - 0.2f;
+                sum += i == data.length / 2 ? data[i] : 2 * data[i];
+            }
+            for( int i = 0; i < data.length; i++ )
+            {
+                data[i] /= sum;
+            }
+            PLPRuntimeConvolver.FixedKernel kernel = PLPRuntimeConvolver.kernel(side, side, data);
+            for( int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB} )
+            {
+                BufferedImage image = randomImage(150, 100, type, side);
+                for( PLPRuntimeConvolver.EdgeMode mode : PLPRuntimeConvolver.EdgeMode.values() )
+                {
+                    BufferedImage direct = PLPRuntimeConvolver.direct(
+                        image, new BufferedImage(150, 100, type), kernel, mode);
+                    BufferedImage fft = PLPRuntimeFFTConvolver.convolve(
+                        image, new BufferedImage(150, 100, type), kernel, mode);
+                    assertSamePixels(direct, fft);
+                }
+            }
+
+            // ConvolveOp sums in floating point rather than fixed point, which rounds differently
+            BufferedImage image = randomImage(150, 100, BufferedImage.TYPE_INT_RGB, side);
+            BufferedImage expected = new ConvolveOp(new Kernel(side, side, data), ConvolveOp.EDGE_ZERO_FILL, null)
+                .filter(image, null);
+            BufferedImage fft = PLPRuntimeFFTConvolver.convolve(
+                image, new BufferedImage(150, 100, BufferedImage.TYPE_INT_RGB), kernel,
+                PLPRuntimeConvolver.EdgeMode.ZERO);
+            for( int y = 0; y < 100; y++ )
+            {
+                for( int x = 0; x < 150; x++ )
+                {
+                    for( int shift = 0; shift < 24; shift += 8 )
+                    {
+                        int e = (expected.getRGB(x, y) >> shift) & 0xFF;
+                        int a = (fft.getRGB(x, y) >> shift) & 0xFF;
+                        assertTrue("at " + x + ", " + y, Math.abs(e - a) <= 1);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testScaleMatchesReference() throws Exception
+    {
+        PLPRuntimeScaler.Mode oldMode = PLPRuntimeScaler.getMode();
+        try
+        {
+            for( int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB} )
+            {
+                BufferedImage image = randomImage(37, 23, type, type);
+                int w = image.getWidth();
+                int h = image.getHeight();
+                for( int factor = 1; factor <= 5; factor++ )
+                {
+                    PLPRuntimeScaler.setMode(PLPRuntimeScaler.Mode.NEAREST);
+                    BufferedImage nearest = PLPRuntimeScaler.scale(image, factor);
+                    PLPRuntimeScaler.setMode(PLPRuntimeScaler.Mode.BILINEAR);
+                    BufferedImage bilinear = PLPRuntimeScaler.scale(image, factor);
+                    assertEquals(w * factor, nearest.getWidth());
+                    assertEquals(h * factor, bilinear.getHeight());
+                    for( int y = 0; y < h * factor; y++ )
+                    {
+                        // Centers of destination pixels in source pixels, in 1/256ths
+                        int py = ( int ) Math.floor(((y + 0.5) / factor - 0.5) * 256);
+                        int sy = Math.floorDiv(py, 256);
+                        int fy = py - sy * 256;
+                        int top = Math.max(0, Math.min(h - 1, sy));
+                        int bottom = Math.max(0, Math.min(h - 1, sy + 1));
+                        for( int x = 0; x < w * factor; x++ )
+                        {
+                            assertEquals(image.getRGB(x / factor, y / factor), nearest.getRGB(x, y));
+
+                            int px = ( int ) Math.floor(((x + 0.5) / factor - 0.5) * 256);
+                            int sx = Math.floorDiv(px, 256);
+                            int fx = px - sx * 256;
+                            int left = Math.max(0, Math.min(w - 1, sx));
+                            int right = Math.max(0, Math.min(w - 1, sx + 1));
+                            int expected = type == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+                            for( int shift = type == BufferedImage.TYPE_INT_RGB ? 16 : 24; shift >= 0; shift -= 8 )
+                            {
+                                long sum = (( long ) sample(image, left, top, shift) * (256 - fx)
+                                    + sample(image, right, top, shift) * fx) * (256 - fy)
+                                    + (( long ) sample(image, left, bottom, shift) * (256 - fx)
+                                    + sample(image, right, bottom, shift) * fx) * fy;
+                                expected |= ( int ) ((sum + (1 << 15)) >> 16) << shift;
+                            }
+                            assertEquals("at " + x + ", " + y, expected, bilinear.getRGB(x, y));
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            PLPRuntimeScaler.setMode(oldMode);
+        }
+    }
+
+    @Test
+    public void testShrinkMatchesReference() throws Exception
+    {
+        for( int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB} )
+        {
+            BufferedImage image = randomImage(101, 77, type, type);
+            for( int factor = 1; factor <= 8; factor++ )
+            {
+                BufferedImage shrunk = PLPRuntimeScaler.shrink(image, factor);
+                assertEquals((101 + factor - 1) / factor, shrunk.getWidth());
+                assertEquals((77 + factor - 1) / factor, shrunk.getHeight());
+                for( int y = 0; y < shrunk.getHeight(); y++ )
+                {
+                    for( int x = 0; x < shrunk.getWidth(); x++ )
+                    {
+                        // The mean of the block, cut off at the edges, rounded half up
+                        int expected = type == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+                        for( int shift = type == BufferedImage.TYPE_INT_RGB ? 16 : 24; shift >= 0; shift -= 8 )
+                        {
+                            int sum = 0;
+                            int count = 0;
+                            for( int sy = y * factor; sy < Math.min(77, (y + 1) * factor); sy++ )
+                            {
+                                for( int sx = x * factor; sx < Math.min(101, (x + 1) * factor); sx++ )
+                                {
+                                    sum += sample(image, sx, sy, shift);
+                                    count++;
+                                }
+                            }
+                            expected |= (sum + count / 2) / count << shift;
+                        }
+                        assertEquals("at " + x + ", " + y, expected, shrunk.getRGB(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    private static int sample(BufferedImage image, int x, int y, int shift)
+    {
+        return (image.getRGB(x, y) >>> shift) & 0xFF;
+    }
+
+    @Test
+    public void testBoxBlurMatchesReference() throws Exception
+    {
+        ForkJoinPool oldPool = PLPRuntimeParallel.getPool();
+        int oldThreshold = PLPRuntimeParallel.getThreshold();
+        // Several bands even for small images, each priming its own window
+        ForkJoinPool pool = new ForkJoinPool(4);
+        PLPRuntimeParallel.setPool(pool);
+        PLPRuntimeParallel.setThreshold(0);
+        try
+        {
+            for( int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB} )
+            {
+                BufferedImage image = randomImage(31, 200, type, type);
+                for( int radius : new int[]{0, 1, 2, 7, 40} )
+                {
+                    BufferedImage expected = boxBlur(image, radius);
+                    assertSamePixels(expected, PLPRuntimeBoxBlur.blur(image, new BufferedImage(31, 200, type), radius));
+                    // The same blur as a pipeline stage
+                    int[] stages = {PLPRuntimePipeline.BLUR_RADIUS, radius};
+                    assertSamePixels(expected, PLPRuntimePipeline.filter(image, null, stages));
+                }
+            }
+        }
+        finally
+        {
+            PLPRuntimeParallel.setPool(oldPool);
+            PLPRuntimeParallel.setThreshold(oldThreshold);
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSummedAreaMatchesReference() throws Exception
+    {
+        Random random = new Random(13);
+        for( int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB} )
+        {
+            BufferedImage image = randomImage(23, 17, type, type);
+            PLPRuntimeSummedArea sat = PLPRuntimeSummedArea.of(image);
+            long[] columns = new long[24];
+            long[] sums = new long[23];
+            for( int c = PLPRuntimeSummedArea.ALPHA; c <= PLPRuntimeSummedArea.BLUE; c++ )
+            {
+                int shift = 24 - 8 * c;
+                for( int i = 0; i < 200; i++ )
+                {
+                    int x0 = random.nextInt(24);
+                    int x1 = x0 + random.nextInt(24 - x0);
+                    int y0 = random.nextInt(18);
+                    int y1 = y0 + random.nextInt(18 - y0);
+                    long expected = 0;
+                    for( int y = y0; y < y1; y++ )
+                    {
+                        for( int x = x0; x < x1; x++ )
+                        {
+                            expected += sample(image, x, y, shift);
+                        }
+                    }
+                    assertEquals(expected, sat.sum(c, x0, y0, x1, y1));
+                }
+                // Windows inside the image, past one edge, and past every edge
+                for( int[] radii : new int[][]{{0, 0}, {2, 1}, {15, 3}, {4, 40}, {3000, 2000}} )
+                {
+                    for( int y = 0; y < 17; y++ )
+                    {
+                        sat.windowSums(c, y, radii[0], radii[1], columns, sums);
+                        for( int x = 0; x < 23; x++ )
+                        {
+                            long expected = windowSum(image, shift, x, y, radii[0], radii[1]);
+                            assertEquals(expected, sat.windowSum(c, x, y, radii[0], radii[1]));
+                            assertEquals(expected, sums[x]);
+                        }
+                    }
+                }
+            }
+            // Past WINDOW_RADIUS, blurs are taken from the tables
+            int radius = PLPRuntimeBoxBlur.WINDOW_RADIUS + 3;
+            BufferedImage blurred = PLPRuntimeBoxBlur.blur(image, new BufferedImage(23, 17, type), radius);
+            assertSamePixels(boxBlur(image, radius), blurred);
+        }
+    }
+
+    /**
+     * The box blur of image computed pixel by pixel from its definition
+     */
+    private static BufferedImage boxBlur(BufferedImage image, int radius)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        long area = (2L * radius + 1) * (2L * radius + 1);
+        boolean alpha = image.getColorModel().hasAlpha();
+        BufferedImage blurred = new BufferedImage(w, h, image.getType());
+        for( int y = 0; y < h; y++ )
+        {
+            for( int x = 0; x < w; x++ )
+            {
+                int pixel = alpha ? 0 : 0xFF000000;
+                for( int shift = alpha ? 24 : 16; shift >= 0; shift -= 8 )
+                {
+                    long sum = windowSum(image, shift, x, y, radius, radius);
+                    pixel |= ( int ) ((sum + area / 2) / area) << shift;
+                }
+                blurred.setRGB(x, y, pixel);
+            }
+        }
+        return blurred;
+    }
+
+    /**
+     * The sum of one channel over the (2 rx + 1) x (2 ry + 1) window around (x, y), with the
+     * rows and columns past the edges replaced by the nearest edge row or column
+     */
+    private static long windowSum(BufferedImage image, int shift, int x, int y, int rx, int ry)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        // How many times each column and row falls in the window
+        long[] columns = new long[w];
+        long[] rows = new long[h];
+        for( int i = x - rx; i <= x + rx; i++ )
+        {
+            columns[Math.max(0, Math.min(w - 1, i))]++;
+        }
+        for( int j = y - ry; j <= y + ry; j++ )
+        {
+            rows[Math.max(0, Math.min(h - 1, j))]++;
+        }
+        long sum = 0;
+        for( int j = 0; j < h; j++ )
+        {
+            for( int i = 0; i < w; i++ )
+            {
+                sum += rows[j] * columns[i] * sample(image, i, j, shift);
+            }
+        }
+        return sum;
+    }
+
     @Ignore("infinite loop")
     public void testBest() throws Exception
     {
@@ -0,0 +1,397 @@
+package cop5556sp17;
+
+import cop5556sp17.AST.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static cop5556sp17.AST.Type.TypeName;
+import static cop5556sp17.Scanner.Kind;
+
+/**
+ * Finds filter ops whose result may be written over an image that is no longer needed.
+ * <p>
+ * In a chain such as {@code a -> blur -> b}, the image b held before the statement is dead
+ * once the statement runs, unless some other variable or frame still refers to it. Image
+ * chains pass references around without copying: {@code b -> c} leaves b and c holding the same
+ * image, and {@code b -> f} hands it to frame f. An image variable that never takes part in
+ * such an exchange is the only holder of its value, so the filter that produces its next value
+ * can reuse the old one as its destination. Those filters get their destination set with
+ * {@link FilterOpChain#setDest(Dec)}.
+ * <p>
+ * Variables declared inside a loop are normally reset to null on every iteration, which would
+ * leave nothing to reuse. When the first statement of the block that mentions such a variable
+ * is the reusing store itself, the old value can never be observed, and the variable is marked
+ * with {@link Dec#setCarried(boolean)} so that it keeps its value between iterations.
+ * <p>
+ * The same facts tell which stores overwrite the only reference to an image. Those are marked
+ * with setRetiresPrevious, and the image they overwrite is handed back to PLPRuntimeImagePool.
+ * <p>
+ * Finally, file and url parameters that are read as whole images, and never written, are
+ * marked with setPrefetched, so that decoding them can start in the constructor.
+ * <p>
+ * Images shared with copy-on-write assignments are not tracked here; the runtime refuses to
+ * write into them or to pool them. This visitor must run after type checking and before code
+ * generation.
+ */
+public class LivenessVisitor implements ASTVisitor
+{
+
+    /**
+     * A filter op whose result is stored into target, and the variables its source may alias
+     */
+    private static class Store
+    {
+        final FilterOpChain filter;
+        final Dec target;
+        final Set<Dec> source;
+
+        Store(FilterOpChain filter, Dec target, Set<Dec> source)
+        {
+            this.filter = filter;
+            this.target = target;
+            this.source = source;
+        }
+    }
+
+    // Image variables whose value may be held by another variable or a frame
+    private final Set<Dec> escaped = new HashSet<>();
+
+    private final List<Store> stores = new ArrayList<>();
+
+    // Per filter op, the variables its source may alias
+    private final Map<FilterOpChain, Set<Dec>> filterSources = new HashMap<>();
+
+    // Image stores at the end of a chain, with the variables the stored value may alias
+    private final Map<IdentChain, Set<Dec>> chainStores = new HashMap<>();
+
+    // Image assignments
+    private final List<IdentLValue> assignments = new ArrayList<>();
+
+    // Variables mentioned by the statement being visited, with the number of mentions
+    private Map<Dec, Integer> mentions = new HashMap<>();
+
+    // Variables declared inside a loop, with the block that declares them
+    private final Map<Dec, Block> loopDecs = new HashMap<>();
+
+    // Per block, the variables mentioned by each of its statements
+    private final Map<Block, List<Map<Dec, Integer>>> blockMentions = new HashMap<>();
+
+    // Per statement, the store that ends it, if any
+    private final Map<Statement, Store> statementStores = new HashMap<>();
+
+    // Files and urls read as whole images, and files written to
+    private final Set<Dec> read = new HashSet<>();
+    private final Set<Dec> written = new HashSet<>();
+
+    private int loops = 0;
+
+    private void mention(Dec dec)
+    {
+        if( dec != null )
+        {
+            mentions.merge(dec, 1, Integer::sum);
+        }
+    }
+
+    @Override
+    public Object visitProgram(Program program, Object arg) throws Exception
+    {
+        program.getB().visit(this, arg);
+
+        for( Store store : stores )
+        {
+            if( !escaped.contains(store.target) && !store.source.contains(store.target) )
+            {
+                store.filter.setDest(store.target);
+            }
+        }
+
+        // The image a private variable held before a store is garbage afterwards
+        for( Map.Entry<IdentChain, Set<Dec>> entry : chainStores.entrySet() )
+        {
+            Dec dec = entry.getKey().getDec();
+            entry.getKey().setRetiresPrevious(!escaped.contains(dec) && !entry.getValue().contains(dec));
+        }
+        for( IdentLValue var : assignments )
+        {
+            var.setRetiresPrevious(!escaped.contains(var.getDec()));
+        }
+
+        for( Map.Entry<Dec, Block> entry : loopDecs.entrySet() )
+        {
+            Dec dec = entry.getKey();
+            Block block = entry.getValue();
+            List<Statement> statements = block.getStatements();
+            List<Map<Dec, Integer>> counts = blockMentions.get(block);
+            for( int i = 0; i < statements.size(); i++ )
+            {
+                Integer count = counts.get(i).get(dec);
+                if( count == null )
+                {
+                    continue;
+                }
+                Store store = statementStores.get(statements.get(i));
+                dec.setCarried(
+                    count == 1 && store != null && store.target == dec && store.filter.getDest() == dec);
+                break;
+            }
+        }
+
+        for( ParamDec paramDec : program.getParams() )
+        {
+            paramDec.setPrefetched(read.contains(paramDec) && !written.contains(paramDec));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBlock(Block block, Object arg) throws Exception
+    {
+        for( Dec dec : block.getDecs() )
+        {
+            if( loops > 0 && dec.getTypeName() == TypeName.IMAGE )
+            {
+                loopDecs.put(dec, block);
+            }
+        }
+
+        List<Map<Dec, Integer>> counts = new ArrayList<>();
+        Map<Dec, Integer> outer = mentions;
+        for( Statement stmt : block.getStatements() )
+        {
+            mentions = new HashMap<>();
+            Object store = stmt.visit(this, arg);
+            if( store instanceof Store )
+            {
+                statementStores.put(stmt, ( Store ) store);
+            }
+            counts.add(mentions);
+            for( Map.Entry<Dec, Integer> entry : mentions.entrySet() )
+            {
+                outer.merge(entry.getKey(), entry.getValue(), Integer::sum);
+            }
+        }
+        mentions = outer;
+        blockMentions.put(block, counts);
+        return null;
+    }
+
+    /**
+     * @return the store at the end of the chain if there is one, otherwise the variables
+     * whose value the chain may evaluate to
+     */
+    @Override
+    public Object visitBinaryChain(BinaryChain binaryChain, Object arg) throws Exception
+    {
+        Set<Dec> source = aliases(binaryChain.getE0().visit(this, arg));
+        ChainElem chElem = binaryChain.getE1();
+        Scanner.Token op = binaryChain.getArrow();
+
+        Chain ch = binaryChain.getE0();
+        if( ch instanceof IdentChain && (ch.getTypeName() == TypeName.FILE || ch.getTypeName() == TypeName.URL)
+            && !(chElem instanceof ImageOpChain && chElem.getFirstToken().isKind(Kind.KW_SHRINK)
+                 && op.isKind(Kind.ARROW)) )
+        {
+            // Reads a whole image, unless code generation fuses the read with the shrink
+            read.add((( IdentChain ) ch).getDec());
+        }
+
+        if( chElem instanceof IdentChain )
+        {
+            Dec dec = (( IdentChain ) chElem).getDec();
+            mention(dec);
+            switch( chElem.getTypeName() )
+            {
+                case IMAGE:
+                    if( !source.isEmpty() )
+                    {
+                        // Both now hold the same image
+                        escaped.addAll(source);
+                        escaped.add(dec);
+                    }
+                    chainStores.put(( IdentChain ) chElem, source);
+                    if( ch instanceof BinaryChain && (( BinaryChain ) ch).getE1() instanceof FilterOpChain
+                        && (( BinaryChain ) ch).getArrow().isKind(Kind.ARROW) )
+                    {
+                        FilterOpChain filter = ( FilterOpChain ) (( BinaryChain ) ch).getE1();
+                        Store store = new Store(filter, dec, filterSources.get(filter));
+                        stores.add(store);
+                        return store;
+                    }
+                    Set<Dec> result = new HashSet<>(source);
+                    result.add(dec);
+                    return result;
+                case FRAME:
+                    // The frame keeps a reference to the image it displays
+                    escaped.addAll(source);
+                    return Collections.emptySet();
+                case FILE:
+                    // Writing passes the image on unchanged
+                    written.add(dec);
+                    return source;
+                default:
+                    return Collections.emptySet();
+            }
+        }
+
+        chElem.visit(this, arg);
+        if( chElem instanceof FilterOpChain )
+        {
+            filterSources.put(( FilterOpChain ) chElem, source);
+            if( op.isKind(Kind.BARARROW) && chElem.getFirstToken().isKind(Kind.OP_GRAY) )
+            {
+                // Gray in place evaluates to its source
+                return source;
+            }
+        }
+        return Collections.emptySet();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Dec> aliases(Object result)
+    {
+        if( result instanceof Store )
+        {
+            return Collections.singleton((( Store ) result).target);
+        }
+        return result == null ? Collections.emptySet() : ( Set<Dec> ) result;
+    }
+
+    @Override
+    public Object visitIdentChain(IdentChain identChain, Object arg) throws Exception
+    {
+        // Only reached for the leftmost element of a chain
+        mention(identChain.getDec());
+        if( identChain.getTypeName() == TypeName.IMAGE )
+        {
+            return Collections.singleton(identChain.getDec());
+        }
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Object visitFilterOpChain(FilterOpChain filterOpChain, Object arg) throws Exception
+    {
+        filterOpChain.getArg().visit(this, arg);
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Object visitFrameOpChain(FrameOpChain frameOpChain, Object arg) throws Exception
+    {
+        frameOpChain.getArg().visit(this, arg);
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Object visitImageOpChain(ImageOpChain imageOpChain, Object arg) throws Exception
+    {
+        imageOpChain.getArg().visit(this, arg);
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Object visitTuple(Tuple tuple, Object arg) throws Exception
+    {
+        for( Expression e : tuple.getExprList() )
+        {
+            e.visit(this, arg);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitAssignmentStatement(AssignmentStatement assignStatement, Object arg) throws Exception
+    {
+        assignStatement.getE().visit(this, arg);
+        assignStatement.getVar().visit(this, arg);
+        return null;
+    }
+
+    @Override
+    public Object visitIdentLValue(IdentLValue identX, Object arg) throws Exception
+    {
+        mention(identX.getDec());
+        if( identX.getDec().getTypeName() == TypeName.IMAGE )
+        {
+            assignments.add(identX);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIdentExpression(IdentExpression identExpression, Object arg) throws Exception
+    {
+        mention(identExpression.getDec());
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpression(BinaryExpression binaryExpression, Object arg) throws Exception
+    {
+        binaryExpression.getE0().visit(this, arg);
+        binaryExpression.getE1().visit(this, arg);
+        return null;
+    }
+
+    @Override
+    public Object visitIfStatement(IfStatement ifStatement, Object arg) throws Exception
+    {
+        ifStatement.getE().visit(this, arg);
+        ifStatement.getB().visit(this, arg);
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStatement(WhileStatement whileStatement, Object arg) throws Exception
+    {
+        whileStatement.getE().visit(this, arg);
+        loops++;
+        whileStatement.getB().visit(this, arg);
+        loops--;
+        return null;
+    }
+
+    @Override
+    public Object visitSleepStatement(SleepStatement sleepStatement, Object arg) throws Exception
+    {
+        sleepStatement.getE().visit(this, arg);
+        return null;
+    }
+
+    @Override
+    public Object visitBooleanLitExpression(BooleanLitExpression booleanLitExpression, Object arg)
+    {
+        return null;
+    }
+
+    @Override
+    public Object visitConstantExpression(ConstantExpression constantExpression, Object arg)
+    {
+        return null;
+    }
+
+    @Override
+    public Object visitIntLitExpression(IntLitExpression intLitExpression, Object arg)
+    {
+        return null;
+    }
+
+    @Override
+    public Object visitDec(Dec declaration, Object arg)
+    {
+        return null;
+    }
+
+    @Override
+    public Object visitParamDec(ParamDec paramDec, Object arg)
+    {
+        return null;
+    }
+}
@@ -0,0 +1,221 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Box blur of arbitrary radius, in time independent of the radius.
+ * <p>
+ * Every output pixel is the mean of the (2r + 1) x (2r + 1) square of source pixels around it,
+ * rounded to the nearest integer, with rows and columns past the edge of the image replaced by
+ * the nearest edge row or column. The square is split into a vertical and a horizontal pass:
+ * each band of rows keeps the running sum of a (2r + 1) row window for every column, adding the
+ * row entering the window and subtracting the row leaving it, and every output row is a sliding
+ * (2r + 1) wide sum over those column sums. Each pixel therefore costs a constant number of
+ * additions whatever the radius, and only O(width) memory is needed per band.
+ * <p>
+ * A band starts by summing the 2r + 1 rows of its first window, where every later row costs
+ * two. Bands are therefore at least BAND_WINDOWS windows tall, which keeps that priming below
+ * a sixteenth of a band's work; blurs of large radii on short images run in fewer bands, or
+ * on one thread, rather than summing the same rows over and over.
+ * <p>
+ * The window sums are ints, which limits this to radii up to WINDOW_RADIUS. Larger radii are
+ * blurred from summed-area tables instead, which are also O(1) per pixel, with long sums.
+ */
+public class PLPRuntimeBoxBlur
+{
+
+    /**
+     * Largest supported radius, which keeps every window sum well inside a long.
+     */
+    public static final int MAX_RADIUS = 1 << 20;
+
+    /**
+     * Largest radius blurred with running window sums, which have to fit in an int. Larger radii
+     * are blurred from the summed-area tables of the image, see PLPRuntimeSummedArea.
+     */
+    static final int WINDOW_RADIUS = 1448;
+
+    /**
+     * Least height of a band, in windows of 2r + 1 rows
+     */
+    static final int BAND_WINDOWS = 8;
+
+    /**
+     * Writes the box blur of image with the given radius into dest.
+     *
+     * @param image  source image
+     * @param dest   destination of the same size as image, must not share pixels with image
+     * @param radius half the side of the averaging square, minus one half; 0 copies the pixels
+     * @return dest
+     */
+    public static BufferedImage blur(BufferedImage image, BufferedImage dest, int radius)
+    {
+        if( radius < 0 || radius > MAX_RADIUS )
+        {
+            throw new IllegalArgumentException("blur radius must be in [0, " + MAX_RADIUS + "], was " + radius);
+        }
+        if( radius > WINDOW_RADIUS )
+        {
+            return blurSummedArea(image, dest, radius);
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+
+        PLPRuntimeParallel.forEachBand(w, h, BAND_WINDOWS * (2 * radius + 1), (y0, y1) ->
+        {
+            int[] row = new int[w];
+            int[] out = new int[w];
+            Window window = new Window(w, radius, alpha);
+
+            // Column sums of the window around row y0
+            for( int y = y0 - radius; y <= y0 + radius; y++ )
+            {
+                PLPRuntimeRaster.readRow(image, clamp(y, h), row, w);
+                window.accumulate(row, 1);
+            }
+            for( int y = y0; y < y1; y++ )
+            {
+                if( y > y0 )
+                {
+                    PLPRuntimeRaster.readRow(image, clamp(y + radius, h), row, w);
+                    window.accumulate(row, 1);
+                    PLPRuntimeRaster.readRow(image, clamp(y - radius - 1, h), row, w);
+                    window.accumulate(row, -1);
+                }
+                window.average(out);
+                PLPRuntimeRaster.writeRow(dest, y, out, w);
+            }
+        });
+        return dest;
+    }
+
+    // The same blur, with every window summed from the summed-area tables of image
+    private static BufferedImage blurSummedArea(BufferedImage image, BufferedImage dest, int radius)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        PLPRuntimeSummedArea sat = PLPRuntimeSummedArea.of(image);
+        long side = 2L * radius + 1;
+        long area = side * side;
+        long half = area / 2;
+        double inverse = 1.0 / area;
+
+        PLPRuntimeParallel.forEachBand(w, h, (y0, y1) ->
+        {
+            long[] columns = new long[w + 1];
+            long[] sums = new long[w];
+            int[] out = new int[w];
+            for( int y = y0; y < y1; y++ )
+            {
+                Arrays.fill(out, alpha ? 0 : 0xFF000000);
+                for( int c = alpha ? PLPRuntimeSummedArea.ALPHA : PLPRuntimeSummedArea.RED; c < 4; c++ )
+                {
+                    sat.windowSums(c, y, radius, radius, columns, sums);
+                    int shift = 24 - 8 * c;
+                    for( int x = 0; x < w; x++ )
+                    {
+                        // Rounded mean, estimated in floating point and corrected to the exact quotient
+                        long t = sums[x] + half;
+                        long mean = ( long ) (t * inverse);
+                        mean -= mean * area > t ? 1 : 0;
+                        mean += (mean + 1) * area <= t ? 1 : 0;
+                        out[x] |= ( int ) mean << shift;
+                    }
+                }
+                PLPRuntimeRaster.writeRow(dest, y, out, w);
+            }
+        });
+        return dest;
+    }
+
+    /**
+     * Running column sums of a (2r + 1) row window, for one band of rows
+     */
+    static final class Window
+    {
+        private final int radius;
+        private final boolean alpha;
+        private final int[] sa;
+        private final int[] sr;
+        private final int[] sg;
+        private final int[] sb;
+        // Division by the area as a multiplication and a shift, exact for every sum below 2^31
+        private final int shift;
+        private final long inverse;
+        private final int half;
+
+        Window(int w, int radius, boolean alpha)
+        {
+            this.radius = radius;
+            this.alpha = alpha;
+            sa = new int[w];
+            sr = new int[w];
+            sg = new int[w];
+            sb = new int[w];
+            int side = 2 * radius + 1;
+            int area = side * side;
+            shift = 31 + (32 - Integer.numberOfLeadingZeros(area - 1));
+            inverse = ((1L << shift) + area - 1) / area;
+            half = area / 2;
+        }
+
+        /**
+         * Adds sign times every channel of row to the column sums
+         */
+        void accumulate(int[] row, int sign)
+        {
+            for( int x = 0; x < sa.length; x++ )
+            {
+                int c = row[x];
+                sa[x] += sign * (c >>> 24);
+                sr[x] += sign * ((c >> 16) & 0xFF);
+                sg[x] += sign * ((c >> 8) & 0xFF);
+                sb[x] += sign * (c & 0xFF);
+            }
+        }
+
+        /**
+         * Writes the mean of the (2r + 1) wide window of column sums around every pixel to out
+         */
+        void average(int[] out)
+        {
+            int w = sa.length;
+            int ta = radius * sa[0];
+            int tr = radius * sr[0];
+            int tg = radius * sg[0];
+            int tb = radius * sb[0];
+            for( int x = 0; x <= radius; x++ )
+            {
+                int c = clamp(x, w);
+                ta += sa[c];
+                tr += sr[c];
+                tg += sg[c];
+                tb += sb[c];
+            }
+            for( int x = 0; x < w; x++ )
+            {
+                int a = alpha ? ( int ) (((ta + half) * inverse) >>> shift) : 0xFF;
+                int r = ( int ) (((tr + half) * inverse) >>> shift);
+                int g = ( int ) (((tg + half) * inverse) >>> shift);
+                int b = ( int ) (((tb + half) * inverse) >>> shift);
+                out[x] = (a << 24) | (r << 16) | (g << 8) | b;
+
+                int in = clamp(x + radius + 1, w);
+                int gone = clamp(x - radius, w);
+                ta += sa[in] - sa[gone];
+                tr += sr[in] - sr[gone];
+                tg += sg[in] - sg[gone];
+                tb += sb[in] - sb[gone];
+            }
+        }
+    }
+
+    // Index i moved into [0, n), which replicates the edge rows and columns
+    static int clamp(int i, int n)
+    {
+        return i < 0 ? 0 : i >= n ? n - 1 : i;
+    }
+}
@@ -0,0 +1,343 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Convolution of images with small kernels, in parallel bands of rows.
+ * <p>
+ * Every band keeps a ring of kernel-height source rows, unpacked into one int array per channel
+ * and padded on both sides, so the rows a band needs above and below itself (its halo) are read
+ * straight from the source image and no band waits for another. Kernels are converted once to
+ * 16.16 fixed point, or to integers when all weights are whole numbers, compiled by
+ * PLPRuntimeKernelCompiler and cached by their contents; a channel is the sum of weight times sample,
+ * rounded down and saturated to [0, 255], which is what java.awt.image.ConvolveOp computes for
+ * the standard image types.
+ * <p>
+ * The kernel is applied without flipping, with its origin at its center, like ConvolveOp.
+ * Kernels with many taps are handed to PLPRuntimeFFTConvolver, which gives the same results.
+ * What happens at the edges is chosen with an EdgeMode. The default for blurOp and convolveOp,
+ * ZERO, can be changed with the system property plp.runtime.edgeMode or with setEdgeMode.
+ */
+public class PLPRuntimeConvolver
+{
+
+    public enum EdgeMode
+    {
+        /**
+         * Pixels closer to the edge than the kernel reaches are set to 0, like ConvolveOp.EDGE_ZERO_FILL
+         */
+        ZERO,
+        /**
+         * Samples beyond the edge repeat the outermost row or column
+         */
+        CLAMP,
+        /**
+         * Samples beyond the edge mirror the image about its outermost row or column
+         */
+        MIRROR;
+
+        /**
+         * @return the mode named name, in any case, or otherwise if there is none
+         */
+        static EdgeMode of(String name, EdgeMode otherwise)
+        {
+            for( EdgeMode mode : values() )
+            {
+                if( mode.name().equalsIgnoreCase(name.trim()) )
+                {
+                    return mode;
+                }
+            }
+            return otherwise;
+        }
+    }
+
+    // A mistyped plp.runtime.edgeMode falls back to ZERO rather than failing every convolution
+    private static volatile EdgeMode edgeMode =
+        EdgeMode.of(System.getProperty("plp.runtime.edgeMode", "zero"), EdgeMode.ZERO);
+
+    public static void setEdgeMode(EdgeMode mode)
+    {
+        edgeMode = mode;
+    }
+
+    public static EdgeMode getEdgeMode()
+    {
+        return edgeMode;
+    }
+
+    private static final int SHIFT = 16;
+
+    /**
+     * A kernel in fixed point, ready to be applied
+     */
+    static final class FixedKernel
+    {
+        final int width;
+        final int height;
+        final int originX;
+        final int originY;
+        final int[] weights;
+        // Number of weights that are not 0
+        final int taps;
+        // 0 when every weight is a whole number, which makes the sums exact without scaling
+        final int shift;
+        // The kernel compiled by PLPRuntimeKernelCompiler, or null to interpret the weights
+        final PLPRuntimeKernelCompiler.Channel compiled;
+
+        FixedKernel(int width, int height, float[] data)
+        {
+            this.width = width;
+            this.height = height;
+            this.originX = (width - 1) / 2;
+            this.originY = (height - 1) / 2;
+            this.weights = new int[width * height];
+            boolean whole = true;
+            for( int i = 0; i < weights.length; i++ )
+            {
+                whole &= data[i] == Math.rint(data[i]) && Math.abs(data[i]) <= 1 << SHIFT;
+            }
+            this.shift = whole ? 0 : SHIFT;
+            long total = 0;
+            int taps = 0;
+            for( int i = 0; i < weights.length; i++ )
+            {
+                weights[i] = Math.round(data[i] * (1 << shift));
+                total += Math.abs(( long ) weights[i]);
+                taps += weights[i] != 0 ? 1 : 0;
+            }
+            this.taps = taps;
+            if( total * 255 > Integer.MAX_VALUE )
+            {
+                throw new IllegalArgumentException("Kernel weights are too large: " + Arrays.toString(data));
+            }
+            this.compiled = PLPRuntimeKernelCompiler.compile(width, height, weights, shift);
+        }
+    }
+
+    private static final class KernelKey
+    {
+        final int width;
+        final float[] data;
+
+        KernelKey(int width, float[] data)
+        {
+            this.width = width;
+            this.data = data;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return width * 31 + Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if( !(obj instanceof KernelKey) )
+            {
+                return false;
+            }
+            KernelKey other = ( KernelKey ) obj;
+            return width == other.width && Arrays.equals(data, other.data);
+        }
+    }
+
+    private static final Map<KernelKey, FixedKernel> kernels = new ConcurrentHashMap<>();
+
+    /**
+     * @return the fixed point form of the width x height kernel data, from the cache if it was seen before
+     */
+    static FixedKernel kernel(int width, int height, float[] data)
+    {
+        if( width <= 0 || height <= 0 || data.length < width * height )
+        {
+            throw new IllegalArgumentException("Kernel of " + data.length + " weights is not " + width + " x " + height);
+        }
+        FixedKernel kernel = kernels.get(new KernelKey(width, data));
+        if( kernel == null )
+        {
+            float[] copy = Arrays.copyOf(data, width * height);
+            kernel = kernels.computeIfAbsent(new KernelKey(width, copy), k -> new FixedKernel(width, height, copy));
+        }
+        return kernel;
+    }
+
+    /**
+     * Writes the convolution of image with the width x height kernel data into dest.
+     *
+     * @param image source image
+     * @param dest  destination of the same size as image, must not share pixels with image
+     * @param mode  what to do at the edges
+     * @return dest
+     */
+    public static BufferedImage convolve(BufferedImage image, BufferedImage dest, int width, int height, float[] data,
+                                         EdgeMode mode)
+    {
+        FixedKernel kernel = kernel(width, height, data);
+        if( PLPRuntimeFFTConvolver.prefers(kernel) )
+        {
+            return PLPRuntimeFFTConvolver.convolve(image, dest, kernel, mode);
+        }
+        return direct(image, dest, kernel, mode);
+    }
+
+    /**
+     * Writes the convolution of image with kernel into dest, computing every sum directly.
+     */
+    static BufferedImage direct(BufferedImage image, BufferedImage dest, FixedKernel kernel, EdgeMode mode)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int kh = kernel.height;
+        int oy = kernel.originY;
+        // Channel 0 is alpha, then red, green and blue. Opaque images skip alpha.
+        int first = image.getColorModel().hasAlpha() ? 0 : 1;
+
+        PLPRuntimeParallel.forEachBand(w, h, (y0, y1) ->
+        {
+            int[][][] ring = ring(kernel, w);
+            int[] row = new int[w];
+            int[] out = new int[w];
+            int[] acc = new int[w];
+
+            for( int y = y0 - oy; y < y0 - oy + kh - 1; y++ )
+            {
+                PLPRuntimeRaster.readRow(image, index(y, h, mode), row, w);
+                unpack(row, ring[Math.floorMod(y, kh)], first, kernel.originX, mode);
+            }
+            for( int y = y0; y < y1; y++ )
+            {
+                int next = y - oy + kh - 1;
+                PLPRuntimeRaster.readRow(image, index(next, h, mode), row, w);
+                unpack(row, ring[Math.floorMod(next, kh)], first, kernel.originX, mode);
+                convolveRow(kernel, ring, y, h, first, mode, acc, out);
+                PLPRuntimeRaster.writeRow(dest, y, out, w);
+            }
+        });
+        return dest;
+    }
+
+    /**
+     * @return a ring of kernel-height rows of unpacked channels, for rows w pixels wide
+     */
+    static int[][][] ring(FixedKernel kernel, int w)
+    {
+        return new int[kernel.height][4][w + kernel.width - 1];
+    }
+
+    /**
+     * Computes output row y from the ring, whose slot floorMod(v, kernel height) holds source
+     * row v for every v the kernel covers. Pixels the kernel does not fit over are 0 in ZERO mode,
+     * apart from the alpha of opaque images, which is always 0xFF.
+     *
+     * @param acc scratch row, at least as long as out
+     * @param out output row, as wide as the image
+     */
+    static void convolveRow(FixedKernel kernel, int[][][] ring, int y, int h, int first, EdgeMode mode, int[] acc,
+                            int[] out)
+    {
+        int w = out.length;
+        int kw = kernel.width;
+        int kh = kernel.height;
+        int ox = kernel.originX;
+        int oy = kernel.originY;
+        int[] weights = kernel.weights;
+        int opaque = first == 0 ? 0 : 0xFF000000;
+        boolean zero = mode == EdgeMode.ZERO;
+        // In ZERO mode only interior pixels, whose whole window lies inside the image, are computed
+        if( zero && (y < oy || y >= h - (kh - 1 - oy)) )
+        {
+            Arrays.fill(out, opaque);
+            return;
+        }
+        int x0 = zero ? Math.min(ox, w) : 0;
+        int x1 = zero ? Math.max(x0, w - (kw - 1 - ox)) : w;
+
+        Arrays.fill(out, opaque);
+        if( kernel.compiled != null )
+        {
+            int[][] rows = new int[kh][];
+            for( int c = first; c < 4; c++ )
+            {
+                for( int j = 0; j < kh; j++ )
+                {
+                    rows[j] = ring[Math.floorMod(y - oy + j, kh)][c];
+                }
+                kernel.compiled.apply(rows, x0, x1, 24 - 8 * c, out);
+            }
+            return;
+        }
+        for( int c = first; c < 4; c++ )
+        {
+            Arrays.fill(acc, 0);
+            for( int j = 0; j < kh; j++ )
+            {
+                int[] samples = ring[Math.floorMod(y - oy + j, kh)][c];
+                for( int i = 0; i < kw; i++ )
+                {
+                    int weight = weights[j * kw + i];
+                    if( weight == 0 )
+                    {
+                        continue;
+                    }
+                    for( int x = x0; x < x1; x++ )
+                    {
+                        acc[x] += weight * samples[x + i];
+                    }
+                }
+            }
+            int shift = 24 - 8 * c;
+            for( int x = x0; x < x1; x++ )
+            {
+                out[x] |= PLPRuntimeKernels.clamp(acc[x] >> kernel.shift) << shift;
+            }
+        }
+    }
+
+    /**
+     * Splits a row of packed pixels into the channel arrays of a ring slot and pads them for the mode.
+     */
+    static void unpack(int[] row, int[][] slot, int first, int ox, EdgeMode mode)
+    {
+        int w = row.length;
+        for( int c = first; c < 4; c++ )
+        {
+            int shift = 24 - 8 * c;
+            int[] samples = slot[c];
+            for( int x = 0; x < w; x++ )
+            {
+                samples[x + ox] = (row[x] >>> shift) & 0xFF;
+            }
+            for( int p = 0; p < samples.length; p++ )
+            {
+                if( p == ox )
+                {
+                    p += w - 1;
+                    continue;
+                }
+                samples[p] = mode == EdgeMode.ZERO ? 0 : samples[index(p - ox, w, mode) + ox];
+            }
+        }
+    }
+
+    // Maps a row or column index outside [0, n) back into it
+    static int index(int i, int n, EdgeMode mode)
+    {
+        if( i >= 0 && i < n )
+        {
+            return i;
+        }
+        if( mode != EdgeMode.MIRROR || n == 1 )
+        {
+            return i < 0 ? 0 : n - 1;
+        }
+        int period = 2 * n - 2;
+        i = Math.floorMod(i, period);
+        return i < n ? i : period - i;
+    }
+}
@@ -0,0 +1,100 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Tracks BufferedImages that share one raster, so copies can be deferred until a write.
+ * <p>
+ * share hands out a new BufferedImage over the raster of its argument instead of copying
+ * the pixels. Every image built this way joins the group of its source. An image is shared
+ * while at least one other member of its group is still reachable; an op that would write
+ * into a shared image must write into a fresh one instead.
+ * <p>
+ * Members leave a group only when they are garbage collected. A handle that stops using
+ * the raster may still be reachable from somewhere else, so it cannot be dropped any earlier.
+ */
+public class PLPRuntimeCopyOnWrite
+{
+
+    private static final Map<BufferedImage, Group> groups = new WeakHashMap<>();
+
+    private static class Group
+    {
+        private final List<WeakReference<BufferedImage>> members = new ArrayList<>();
+
+        void add(BufferedImage image)
+        {
+            members.add(new WeakReference<>(image));
+        }
+
+        int live()
+        {
+            int n = 0;
+            for( Iterator<WeakReference<BufferedImage>> it = members.iterator(); it.hasNext(); )
+            {
+                if( it.next().get() == null )
+                {
+                    it.remove();
+                }
+                else
+                {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Returns a new image that shares the raster, and therefore the pixels, of source.
+     *
+     * @param source image to share
+     * @return a handle on the same pixels as source
+     */
+    public static BufferedImage share(BufferedImage source)
+    {
+        ColorModel cm = source.getColorModel();
+        BufferedImage alias = new BufferedImage(cm, source.getRaster(), cm.isAlphaPremultiplied(), null);
+        join(source, alias);
+        return alias;
+    }
+
+    /**
+     * Records that image now reads pixels owned by source, without creating a new handle.
+     * Used for views such as sub-images whose raster is a child of the source raster.
+     */
+    public static void join(BufferedImage source, BufferedImage image)
+    {
+        synchronized( groups )
+        {
+            Group group = groups.get(source);
+            if( group == null )
+            {
+                group = new Group();
+                group.add(source);
+                groups.put(source, group);
+            }
+            group.add(image);
+            groups.put(image, group);
+        }
+    }
+
+    /**
+     * @return true if some other reachable image reads the pixels of image
+     */
+    public static boolean isShared(BufferedImage image)
+    {
+        synchronized( groups )
+        {
+            Group group = groups.get(image);
+            return group != null && group.live() > 1;
+        }
+    }
+}
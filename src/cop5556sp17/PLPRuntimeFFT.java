@@ -0,0 +1,135 @@
+package cop5556sp17;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fast Fourier transform of n x n complex arrays, for n a power of two.
+ * <p>
+ * Arrays are stored row by row, with the real and imaginary parts in separate double arrays.
+ * The two dimensional transform is a one dimensional radix-2 transform of every row followed by
+ * one of every column. The inverse transform includes the division by n * n.
+ */
+public class PLPRuntimeFFT
+{
+
+    private static final Map<Integer, PLPRuntimeFFT> instances = new ConcurrentHashMap<>();
+
+    /**
+     * @return the transform of size n, which has to be a power of two
+     */
+    public static PLPRuntimeFFT of(int n)
+    {
+        if( n <= 0 || Integer.bitCount(n) != 1 )
+        {
+            throw new IllegalArgumentException("FFT size must be a power of two, was " + n);
+        }
+        return instances.computeIfAbsent(n, PLPRuntimeFFT::new);
+    }
+
+    private final int n;
+    private final int[] reverse;
+    private final double[] cos;
+    private final double[] sin;
+
+    private PLPRuntimeFFT(int n)
+    {
+        this.n = n;
+        this.reverse = new int[n];
+        int bits = Integer.numberOfTrailingZeros(n);
+        for( int i = 0; i < n; i++ )
+        {
+            reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        this.cos = new double[n / 2 + 1];
+        this.sin = new double[n / 2 + 1];
+        for( int k = 0; k < cos.length; k++ )
+        {
+            cos[k] = Math.cos(2 * Math.PI * k / n);
+            sin[k] = Math.sin(2 * Math.PI * k / n);
+        }
+    }
+
+    public int size()
+    {
+        return n;
+    }
+
+    /**
+     * Transforms the n x n array (re, im) in place.
+     *
+     * @param inverse true for the inverse transform
+     */
+    public void transform(double[] re, double[] im, boolean inverse)
+    {
+        for( int row = 0; row < n; row++ )
+        {
+            transform(re, im, row * n, inverse);
+        }
+        double[] columnRe = new double[n];
+        double[] columnIm = new double[n];
+        for( int column = 0; column < n; column++ )
+        {
+            for( int row = 0; row < n; row++ )
+            {
+                columnRe[row] = re[row * n + column];
+                columnIm[row] = im[row * n + column];
+            }
+            transform(columnRe, columnIm, 0, inverse);
+            for( int row = 0; row < n; row++ )
+            {
+                re[row * n + column] = columnRe[row];
+                im[row * n + column] = columnIm[row];
+            }
+        }
+        if( inverse )
+        {
+            double scale = 1.0 / (( double ) n * n);
+            for( int i = 0; i < n * n; i++ )
+            {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+    // One dimensional transform of the n values starting at offset, without scaling
+    private void transform(double[] re, double[] im, int offset, boolean inverse)
+    {
+        for( int i = 0; i < n; i++ )
+        {
+            int j = reverse[i];
+            if( i < j )
+            {
+                double t = re[offset + i];
+                re[offset + i] = re[offset + j];
+                re[offset + j] = t;
+                t = im[offset + i];
+                im[offset + i] = im[offset + j];
+                im[offset + j] = t;
+            }
+        }
+        double sign = inverse ? 1 : -1;
+        for( int length = 2; length <= n; length <<= 1 )
+        {
+            int half = length / 2;
+            int step = n / length;
+            for( int start = offset; start < offset + n; start += length )
+            {
+                for( int k = 0; k < half; k++ )
+                {
+                    double wr = cos[k * step];
+                    double wi = sign * sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Convolution in the frequency domain, for kernels too large to apply directly.
+ * <p>
+ * Direct convolution costs one multiplication per kernel tap and pixel. Here the image, padded
+ * for the edge mode, is cut into tiles; every tile is transformed with PLPRuntimeFFT, multiplied
+ * by the transform of the kernel, transformed back, and added into the output where it overlaps
+ * its neighbours (overlap-add). Two channels share one complex transform, one in the real part
+ * and one in the imaginary part, which works because the kernel is real. Tiles of one row of
+ * tiles are processed in parallel, first the even ones and then the odd ones, so that no two
+ * tiles add into the same pixels at the same time.
+ * <p>
+ * The transforms work on the fixed point weights of the kernel, so every sum they produce is an
+ * integer, and rounding it gives exactly the sum the direct convolution computes. The results
+ * of the two paths are the same.
+ * <p>
+ * Which path is faster depends on the machine. When the class is loaded, that is on the first
+ * convolution, both paths are timed on a small image for kernels of growing size, on a daemon
+ * thread so that no convolution waits for it. Kernels with at least as many taps as the first
+ * one that was faster in the frequency domain are convolved here from then on, and until the
+ * measurement is done, kernels with at least DEFAULT_CROSSOVER taps: timing both paths on one
+ * core, the frequency domain caught up between 11 x 11 and 13 x 13 kernels on 256 x 256 to
+ * 2048 x 2048 images. The system property plp.runtime.fftCrossover, set to a number of taps,
+ * or setCrossover replaces the measurement.
+ */
+public class PLPRuntimeFFTConvolver
+{
+
+    // Kernels with fewer taps are always applied directly
+    private static final int MIN_TAPS = 25;
+
+    // Taps of a 13 x 13 kernel
+    public static final int DEFAULT_CROSSOVER = 169;
+
+    // Largest transform used for tiles
+    private static final int MAX_SIZE = 512;
+
+    private static volatile int crossover = DEFAULT_CROSSOVER;
+
+    // True once the crossover was given rather than measured
+    private static volatile boolean fixed = false;
+
+    static
+    {
+        String taps = System.getProperty("plp.runtime.fftCrossover", "measure");
+        try
+        {
+            setCrossover(Integer.parseInt(taps.trim()));
+        }
+        catch( NumberFormatException e )
+        {
+            Thread thread = new Thread(PLPRuntimeFFTConvolver::measure, "plp-fft-crossover");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * @param taps smallest number of kernel taps to convolve in the frequency domain, in place
+     *             of the measured one
+     */
+    public static void setCrossover(int taps)
+    {
+        synchronized( PLPRuntimeFFTConvolver.class )
+        {
+            fixed = true;
+            crossover = taps;
+        }
+    }
+
+    /**
+     * @return the smallest number of kernel taps that is convolved in the frequency domain
+     */
+    public static int getCrossover()
+    {
+        return crossover;
+    }
+
+    /**
+     * @return true if kernel should be applied by convolve rather than directly
+     */
+    static boolean prefers(PLPRuntimeConvolver.FixedKernel kernel)
+    {
+        return kernel.taps >= MIN_TAPS && kernel.taps >= getCrossover();
+    }
+
+    // Times both paths on kernels of growing size until the frequency domain wins
+    private static void measure()
+    {
+        int w = 128;
+        int h = 128;
+        Random random = new Random(0);
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for( int y = 0; y < h; y++ )
+        {
+            for( int x = 0; x < w; x++ )
+            {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        BufferedImage dest = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int taps = Integer.MAX_VALUE;
+        for( int side = 5; side <= 31 && !fixed; side += 2 )
+        {
+            // Distinct weights, so the direct path cannot add any taps up before multiplying
+            float[] data = new float[side * side];
+            for( int i = 0; i < data.length; i++ )
+            {
+                data[i] = (i + 1) * 2.0f / (( float ) data.length * (data.length + 1));
+            }
+            PLPRuntimeConvolver.FixedKernel kernel = new PLPRuntimeConvolver.FixedKernel(side, side, data);
+            long direct = Long.MAX_VALUE;
+            long fft = Long.MAX_VALUE;
+            for( int run = 0; run < 3; run++ )
+            {
+                long start = System.nanoTime();
+                PLPRuntimeConvolver.direct(image, dest, kernel, PLPRuntimeConvolver.EdgeMode.CLAMP);
+                long middle = System.nanoTime();
+                convolve(image, dest, kernel, PLPRuntimeConvolver.EdgeMode.CLAMP);
+                long end = System.nanoTime();
+                direct = Math.min(direct, middle - start);
+                fft = Math.min(fft, end - middle);
+            }
+            if( fft < direct )
+            {
+                taps = kernel.taps;
+                break;
+            }
+        }
+        synchronized( PLPRuntimeFFTConvolver.class )
+        {
+            if( !fixed )
+            {
+                crossover = taps;
+            }
+        }
+    }
+
+    /**
+     * Writes the convolution of image with kernel into dest. The result is the same as that of
+     * PLPRuntimeConvolver.convolve.
+     *
+     * @param image source image
+     * @param dest  destination of the same size as image, must not share pixels with image
+     * @param mode  what to do at the edges
+     * @return dest
+     */
+    static BufferedImage convolve(BufferedImage image, BufferedImage dest, PLPRuntimeConvolver.FixedKernel kernel,
+                                  PLPRuntimeConvolver.EdgeMode mode)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int kw = kernel.width;
+        int kh = kernel.height;
+        int ox = kernel.originX;
+        int oy = kernel.originY;
+        boolean zero = mode == PLPRuntimeConvolver.EdgeMode.ZERO;
+        // Pixels the kernel does not fit over are blank in ZERO mode, so any padding will do
+        PLPRuntimeConvolver.EdgeMode padding = zero ? PLPRuntimeConvolver.EdgeMode.CLAMP : mode;
+        int first = image.getColorModel().hasAlpha() ? 0 : 1;
+        int opaque = first == 0 ? 0 : 0xFF000000;
+        int channels = 4 - first;
+
+        // The padded source, whose pixel (x + i, y + j) is under kernel tap (i, j) for output pixel (x, y)
+        int pw = w + kw - 1;
+        int ph = h + kh - 1;
+        // Correlating with the kernel is convolving with it flipped. The full convolution of the
+        // padded source is (kw - 1, kh - 1) larger again, and output pixel (x, y) is at (x + kw - 1, y + kh - 1).
+        int cw = pw + kw - 1;
+
+        int n = size(kw, kh, pw, ph);
+        PLPRuntimeFFT fft = PLPRuntimeFFT.of(n);
+        int tw = n - kw + 1;
+        int th = n - kh + 1;
+        int tiles = (pw + tw - 1) / tw;
+
+        double[] kre = new double[n * n];
+        double[] kim = new double[n * n];
+        for( int j = 0; j < kh; j++ )
+        {
+            for( int i = 0; i < kw; i++ )
+            {
+                kre[(kh - 1 - j) * n + (kw - 1 - i)] = kernel.weights[j * kw + i];
+            }
+        }
+        fft.transform(kre, kim, false);
+
+        // Rows of the padded source covered by the current row of tiles, per channel
+        int[][] block = new int[channels][th * pw];
+        // Rows of the full convolution the current row of tiles adds into
+        double[][] sums = new double[channels][(th + kh - 1) * cw];
+        int[] row = new int[w];
+        int[] out = new int[w];
+
+        for( int py0 = 0; py0 < ph; py0 += th )
+        {
+            int rows = Math.min(th, ph - py0);
+            for( int r = 0; r < rows; r++ )
+            {
+                PLPRuntimeRaster.readRow(image, PLPRuntimeConvolver.index(py0 + r - oy, h, padding), row, w);
+                for( int px = 0; px < pw; px++ )
+                {
+                    int pixel = row[PLPRuntimeConvolver.index(px - ox, w, padding)];
+                    for( int c = 0; c < channels; c++ )
+                    {
+                        block[c][r * pw + px] = (pixel >>> (24 - 8 * (c + first))) & 0xFF;
+                    }
+                }
+            }
+
+            for( int phase = 0; phase < 2; phase++ )
+            {
+                int start = phase;
+                PLPRuntimeParallel.forEachBand(n * n, (tiles - phase + 1) / 2, (t0, t1) ->
+                {
+                    double[] re = new double[n * n];
+                    double[] im = new double[n * n];
+                    for( int t = t0; t < t1; t++ )
+                    {
+                        int px0 = (start + 2 * t) * tw;
+                        int cols = Math.min(tw, pw - px0);
+                        for( int c = 0; c < channels; c += 2 )
+                        {
+                            tile(fft, block, c, channels, px0, cols, rows, pw, re, im, kre, kim);
+                            for( int v = 0; v < rows + kh - 1; v++ )
+                            {
+                                for( int u = 0; u < cols + kw - 1; u++ )
+                                {
+                                    sums[c][v * cw + px0 + u] += re[v * n + u];
+                                    if( c + 1 < channels )
+                                    {
+                                        sums[c + 1][v * cw + px0 + u] += im[v * n + u];
+                                    }
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+
+            // Rows up to py0 + rows - 1 have all their terms now
+            for( int v = 0; v < rows; v++ )
+            {
+                int y = py0 + v - (kh - 1);
+                if( y < 0 || y >= h )
+                {
+                    continue;
+                }
+                if( zero && (y < oy || y >= h - (kh - 1 - oy)) )
+                {
+                    Arrays.fill(out, opaque);
+                }
+                else
+                {
+                    for( int x = 0; x < w; x++ )
+                    {
+                        int pixel = opaque;
+                        if( !zero || (x >= ox && x < w - (kw - 1 - ox)) )
+                        {
+                            for( int c = 0; c < channels; c++ )
+                            {
+                                // The exact sum is an integer, well within the rounding error
+                                long sum = Math.round(sums[c][v * cw + x + kw - 1]);
+                                pixel |= PLPRuntimeKernels.clamp(( int ) (sum >> kernel.shift)) << (24 - 8 * (c + first));
+                            }
+                        }
+                        out[x] = pixel;
+                    }
+                }
+                PLPRuntimeRaster.writeRow(dest, y, out, w);
+            }
+            // The last kh - 1 rows still get terms from the next row of tiles
+            for( int c = 0; c < channels; c++ )
+            {
+                System.arraycopy(sums[c], rows * cw, sums[c], 0, (kh - 1) * cw);
+                Arrays.fill(sums[c], (kh - 1) * cw, sums[c].length, 0.0);
+            }
+        }
+        return dest;
+    }
+
+    // Full convolution of one tile of channels c and c + 1 with the kernel, left in (re, im)
+    private static void tile(PLPRuntimeFFT fft, int[][] block, int c, int channels, int px0, int cols, int rows,
+                             int pw, double[] re, double[] im, double[] kre, double[] kim)
+    {
+        int n = fft.size();
+        Arrays.fill(re, 0.0);
+        Arrays.fill(im, 0.0);
+        for( int v = 0; v < rows; v++ )
+        {
+            for( int u = 0; u < cols; u++ )
+            {
+                re[v * n + u] = block[c][v * pw + px0 + u];
+                if( c + 1 < channels )
+                {
+                    im[v * n + u] = block[c + 1][v * pw + px0 + u];
+                }
+            }
+        }
+        fft.transform(re, im, false);
+        for( int i = 0; i < n * n; i++ )
+        {
+            double a = re[i];
+            double b = im[i];
+            re[i] = a * kre[i] - b * kim[i];
+            im[i] = a * kim[i] + b * kre[i];
+        }
+        fft.transform(re, im, true);
+    }
+
+    /**
+     * @return the transform size with the least work per pixel for a kw x kh kernel on a
+     * pw x ph padded image
+     */
+    private static int size(int kw, int kh, int pw, int ph)
+    {
+        int k = Math.max(kw, kh);
+        int n = Integer.highestOneBit(2 * k - 1) << 1;
+        int best = n;
+        double least = Double.MAX_VALUE;
+        while( true )
+        {
+            // Tiles beyond the padded image add nothing
+            int tw = Math.min(n - kw + 1, pw);
+            int th = Math.min(n - kh + 1, ph);
+            int tiles = ((pw + tw - 1) / tw) * ((ph + th - 1) / th);
+            double work = ( double ) tiles * n * n * Integer.numberOfTrailingZeros(n);
+            if( work < least )
+            {
+                least = work;
+                best = n;
+            }
+            if( n >= MAX_SIZE || (tw == pw && th == ph) )
+            {
+                break;
+            }
+            n <<= 1;
+        }
+        return best;
+    }
+}
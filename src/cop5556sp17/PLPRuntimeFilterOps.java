@@ -1,6 +1,5 @@
 package cop5556sp17;
 
-import java.awt.*;
 import java.awt.image.*;
 
 public class PLPRuntimeFilterOps
@@ -23,9 +22,7 @@ public class PLPRuntimeFilterOps
 
     /**
      * Returns blurred version of source image in dest image.
-     * If dest is null, a new BufferedImage object is created and returned.
-     * <p>
-     * Precondition:  source != dest.
+     * If dest is null, or cannot be reused, a new BufferedImage object is created and returned.
      *
      * @param image
      * @param dest
@@ -34,17 +31,35 @@ public class PLPRuntimeFilterOps
     public static BufferedImage blurOp(BufferedImage image, BufferedImage dest)
     {
         PLPRuntimeLog.globalLogAddEntry("blurOp");
-        BufferedImageOp op = new ConvolveOp(new Kernel(3, 3, blurKernel));
-        return op.filter(image, dest);
+        dest = dest == image ? null : reusable(image, dest);
+        return PLPRuntimeConvolver.convolve(
+            image, compatibleDest(image, dest), 3, 3, blurKernel, PLPRuntimeConvolver.getEdgeMode());
     }
 
     public final static String opSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + PLPRuntimeImageIO.BufferedImageDesc + ")" + PLPRuntimeImageIO.BufferedImageDesc;
 
+    public final static String blurRadiusSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + PLPRuntimeImageIO.BufferedImageDesc + "I)" + PLPRuntimeImageIO.BufferedImageDesc;
+
+    /**
+     * Returns the box blur of source image with the given radius in dest image, see PLPRuntimeBoxBlur.
+     * Edges are extended by repeating the outermost pixels.
+     * If dest is null, or cannot be reused, a new BufferedImage object is created and returned.
+     *
+     * @param image
+     * @param dest
+     * @param radius
+     * @return
+     */
+    public static BufferedImage blurOp(BufferedImage image, BufferedImage dest, int radius)
+    {
+        PLPRuntimeLog.globalLogAddEntry("blurOp");
+        dest = dest == image ? null : reusable(image, dest);
+        return PLPRuntimeBoxBlur.blur(image, compatibleDest(image, dest), radius);
+    }
+
     /**
      * Returns sharpened version of source image in dest image.
-     * If dest is null, a new BufferedImage object is created and returned.
-     * <p>
-     * Precondition:  source != dest.
+     * If dest is null, or cannot be reused, a new BufferedImage object is created and returned.
      *
      * @param image
      * @param dest
@@ -53,14 +68,36 @@ public class PLPRuntimeFilterOps
     public static BufferedImage convolveOp(BufferedImage image, BufferedImage dest)
     {
         PLPRuntimeLog.globalLogAddEntry("convolve");
-        BufferedImageOp op = new ConvolveOp(new Kernel(3, 3, sharpenKernel));
-        return op.filter(image, dest);
+        dest = dest == image ? null : reusable(image, dest);
+        return PLPRuntimeConvolver.convolve(
+            image, compatibleDest(image, dest), 3, 3, sharpenKernel, PLPRuntimeConvolver.getEdgeMode());
+    }
+
+
+    private static volatile boolean grayBytes = Boolean.getBoolean("plp.runtime.grayBytes");
+
+    /**
+     * @param compact true to have grayOp return TYPE_BYTE_GRAY images, one byte per pixel,
+     *                unless it works in place
+     */
+    public static void setGrayBytes(boolean compact)
+    {
+        grayBytes = compact;
     }
 
+    public static boolean isGrayBytes()
+    {
+        return grayBytes;
+    }
 
     /**
      * Returns a gray scale version of source image in dest image.
      * If dest is null, a new BufferedImage object is created and returned.
+     * dest may be the source image itself, which is then converted in place. If dest cannot
+     * be reused, for instance because it shares its pixels with another image, it is left
+     * alone and a new BufferedImage is returned instead, so callers must use the returned image.
+     * With setGrayBytes(true) (or the system property plp.runtime.grayBytes) a new image is a
+     * TYPE_BYTE_GRAY one, a third or a quarter of the size of a color image.
      *
      * @param image
      * @param dest
@@ -71,27 +108,93 @@ public class PLPRuntimeFilterOps
         PLPRuntimeLog.globalLogAddEntry("grayOp");
         int w = image.getWidth();
         int h = image.getHeight();
+        if( dest != image || reusable(image, dest) != image )
+        {
+            dest = grayBytes ? grayDest(image, dest) : compatibleDest(image, reusable(image, dest));
+        }
+        return PLPRuntimePointOps.apply(PLPRuntimePointOps.GRAY, image, null, 0, dest, w, h);
+    }
+
+    /**
+     * @return dest if it is a TYPE_BYTE_GRAY image of the size of image that may be written,
+     * otherwise one from PLPRuntimeImagePool. Off-heap images keep their layout instead.
+     */
+    static BufferedImage grayDest(BufferedImage image, BufferedImage dest)
+    {
+        if( PLPRuntimeOffHeap.isOffHeap(image) )
+        {
+            return compatibleDest(image, reusable(image, dest));
+        }
+        if( dest != null && dest != image && !PLPRuntimeCopyOnWrite.isShared(dest)
+            && PLPRuntimeImagePool.isStandard(dest) && dest.getType() == BufferedImage.TYPE_BYTE_GRAY
+            && dest.getWidth() == image.getWidth() && dest.getHeight() == image.getHeight() )
+        {
+            return dest;
+        }
+        return PLPRuntimeImagePool.acquire(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+    }
+
+    /**
+     * Returns the summed-area tables of the channels of image, from which the sum or mean of
+     * any rectangle or edge-extended window can be read in constant time.
+     *
+     * @param image
+     * @return
+     */
+    public static PLPRuntimeSummedArea summedArea(BufferedImage image)
+    {
+        return PLPRuntimeSummedArea.of(image);
+    }
+
+    /**
+     * @return dest, or if it is null, an image of the same size and color model as image, off
+     * the heap if image is
+     */
+    static BufferedImage compatibleDest(BufferedImage image, BufferedImage dest)
+    {
+        dest = destFor(image, dest);
         if( dest == null )
         {
-            ColorModel destColorModel = image.getColorModel();
-            dest = new BufferedImage(
-                destColorModel, destColorModel.createCompatibleWritableRaster(w, h),
-                destColorModel.isAlphaPremultiplied(), null
-            );
+            dest = PLPRuntimeImagePool.acquireLike(image, image.getWidth(), image.getHeight());
+        }
+        return dest;
+    }
+
+    /**
+     * @return dest, or if it is null and image has a standard type, an image of the same size
+     * and type from PLPRuntimeImagePool. Other images are left to the op to allocate.
+     */
+    static BufferedImage destFor(BufferedImage image, BufferedImage dest)
+    {
+        if( dest != null || !PLPRuntimeImagePool.isStandard(image) )
+        {
+            return dest;
+        }
+        return PLPRuntimeImagePool.acquire(image.getWidth(), image.getHeight(), image.getType());
+    }
+
+    /**
+     * Checks whether an op on image may write its result into dest.
+     * The compiler passes the previous value of the variable a result is stored to, so dest
+     * can be left over from an earlier image: it is only reused when nothing else reads its
+     * pixels and it has the size and type a newly allocated destination would have.
+     *
+     * @return dest, or null if a new destination has to be allocated
+     */
+    static BufferedImage reusable(BufferedImage image, BufferedImage dest)
+    {
+        if( dest == null || PLPRuntimeCopyOnWrite.isShared(dest) )
+        {
+            return null;
+        }
+        if( dest == image )
+        {
+            return dest;
         }
-        for( int i = 0; i < h; i++ )
+        if( !PLPRuntimeImagePool.isStandard(dest) || dest.getType() != image.getType()
+            || dest.getWidth() != image.getWidth() || dest.getHeight() != image.getHeight() )
         {
-            for( int j = 0; j < w; j++ )
-            {
-                Color c = new Color(image.getRGB(j, i));
-                int red = ( int ) (c.getRed() * 0.299);
-                int green = ( int ) (c.getGreen() * 0.587);
-                int blue = ( int ) (c.getBlue() * 0.114);
-                Color newColor = new Color(red + green + blue,
-                                           red + green + blue, red + green + blue
-                );
-                dest.setRGB(j, i, newColor.getRGB());
-            }
+            return null;
         }
         return dest;
     }
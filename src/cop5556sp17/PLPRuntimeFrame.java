@@ -43,6 +43,8 @@ public class PLPRuntimeFrame extends JFrame
     public static PLPRuntimeFrame createOrSetFrame(BufferedImage i, PLPRuntimeFrame f)
     {
         PLPRuntimeLog.globalLogAddEntry("createOrSetFrame");
+        // The frame keeps showing the image after the program may have freed its pixels
+        i = PLPRuntimeOffHeap.toHeap(i);
         if( f == null )
         {
             return createFrame(i);
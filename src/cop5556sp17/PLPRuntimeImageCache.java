@@ -0,0 +1,390 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded images, so that a program reading the same file or url again, typically in
+ * a loop, does not decode it again.
+ * <p>
+ * Files are looked up by canonical path, and an entry is used only while the file still has
+ * the modification time, size and, where the file system has one, the identity (the inode) it
+ * had when it was decoded. Urls are looked up by their text and validated with the ETag, or
+ * else the Last-Modified time and length, that the server sent with the image; HTTP urls are
+ * asked with a conditional request, which the server answers without the image if it has not
+ * changed. Urls whose responses carry neither are not cached. Images read shrunk are cached
+ * separately per factor.
+ * <p>
+ * The cache keeps the decoded images themselves and hands out handles on them, see
+ * PLPRuntimeCopyOnWrite.share. A handle is shared as long as the cache holds its image, so ops
+ * never write into it in place and the pool never takes it; the cached pixels cannot change.
+ * <p>
+ * The cache holds at most a budget of bytes of pixel data, set with the system property
+ * plp.runtime.imageCacheBytes or with setBudget. When an image would take it over the budget,
+ * the images that were used the longest time ago are dropped. Dropped images stay valid for
+ * the handles still using them.
+ * <p>
+ * The budget is 0 by default, which disables caching. A cached image is memory the program no
+ * longer needs once it has moved on from its source, and most programs read each source once;
+ * a program that reads the same sources over and over should set a budget that holds them.
+ */
+public class PLPRuntimeImageCache
+{
+
+    /**
+     * Decodes an image, from a stream for urls.
+     */
+    interface Loader<T>
+    {
+        BufferedImage load(T source) throws IOException;
+    }
+
+    private static final class Key
+    {
+        final String source;
+        final int factor;
+
+        Key(String source, int factor)
+        {
+            this.source = source;
+            this.factor = factor;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return source.hashCode() * 31 + factor;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if( !(obj instanceof Key) )
+            {
+                return false;
+            }
+            Key other = ( Key ) obj;
+            return source.equals(other.source) && factor == other.factor;
+        }
+    }
+
+    private static final class Entry
+    {
+        final BufferedImage image;
+        final String validator;
+        // Of url responses, for conditional requests; null and 0 if the server sent none
+        final String etag;
+        final long lastModified;
+        final long size;
+
+        Entry(BufferedImage image, String validator, String etag, long lastModified)
+        {
+            this.image = image;
+            this.validator = validator;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.size = PLPRuntimeImagePool.sizeOf(image);
+        }
+    }
+
+    // In access order, least recently used first
+    private static final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long budget = Long.getLong("plp.runtime.imageCacheBytes", 0);
+    private static long bytes = 0;
+
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+
+    /**
+     * Returns a handle on the image in f, decoding it with loader unless it is cached.
+     *
+     * @param factor 1, or the factor loader shrinks the image by
+     * @return the image, or null if loader returns null
+     */
+    static BufferedImage file(File f, int factor, Loader<File> loader) throws IOException
+    {
+        if( getBudget() == 0 )
+        {
+            return loader.load(f);
+        }
+        Key key;
+        String validator;
+        try
+        {
+            key = new Key("file:" + f.getCanonicalPath(), factor);
+            validator = validator(f);
+        }
+        catch( IOException | RuntimeException e )
+        {
+            // Let loader report what is wrong with f
+            return loader.load(f);
+        }
+        Entry entry = lookup(key, validator);
+        if( entry != null )
+        {
+            return PLPRuntimeCopyOnWrite.share(entry.image);
+        }
+        return store(key, loader.load(f), validator, null, 0);
+    }
+
+    /**
+     * @return what identifies the version of f: its modification time, size and file key
+     */
+    static String validator(File f) throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        return attributes.lastModifiedTime() + " " + attributes.size() + " " + attributes.fileKey();
+    }
+
+    /**
+     * Returns a handle on the image at url, decoding it with loader unless it is cached.
+     *
+     * @param factor 1, or the factor loader shrinks the image by
+     * @return the image, or null if loader returns null
+     */
+    static BufferedImage url(URL url, int factor, Loader<InputStream> loader) throws IOException
+    {
+        if( getBudget() == 0 )
+        {
+            try( InputStream in = url.openStream() )
+            {
+                return loader.load(in);
+            }
+        }
+        Key key = new Key(url.toExternalForm(), factor);
+        Entry cached;
+        synchronized( entries )
+        {
+            cached = entries.get(key);
+        }
+        URLConnection connection = url.openConnection();
+        if( cached != null && connection instanceof HttpURLConnection )
+        {
+            if( cached.etag != null )
+            {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+            else if( cached.lastModified != 0 )
+            {
+                connection.setIfModifiedSince(cached.lastModified);
+            }
+        }
+        String validator = validator(connection, cached);
+        if( validator != null )
+        {
+            Entry entry = lookup(key, validator);
+            if( entry != null )
+            {
+                closeQuietly(connection);
+                return PLPRuntimeCopyOnWrite.share(entry.image);
+            }
+        }
+        if( isNotModified(connection) )
+        {
+            // The image was dropped since; ask for it again
+            connection = url.openConnection();
+            validator = validator(connection, null);
+        }
+        BufferedImage image;
+        try( InputStream in = connection.getInputStream() )
+        {
+            image = loader.load(in);
+        }
+        if( validator == null )
+        {
+            return image;
+        }
+        return store(key, image, validator, connection.getHeaderField("ETag"), connection.getLastModified());
+    }
+
+    private static boolean isNotModified(URLConnection connection) throws IOException
+    {
+        return connection instanceof HttpURLConnection
+            && (( HttpURLConnection ) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    // What identifies the version of the image being sent, or null if nothing does
+    private static String validator(URLConnection connection, Entry cached) throws IOException
+    {
+        if( isNotModified(connection) )
+        {
+            return cached.validator;
+        }
+        String etag = connection.getHeaderField("ETag");
+        if( etag != null )
+        {
+            return etag;
+        }
+        long lastModified = connection.getLastModified();
+        if( lastModified == 0 )
+        {
+            return null;
+        }
+        return lastModified + " " + connection.getContentLengthLong();
+    }
+
+    private static void closeQuietly(URLConnection connection)
+    {
+        if( connection instanceof HttpURLConnection )
+        {
+            (( HttpURLConnection ) connection).disconnect();
+            return;
+        }
+        try
+        {
+            connection.getInputStream().close();
+        }
+        catch( IOException e )
+        {
+            // Nothing was going to be read from it
+        }
+    }
+
+    // Returns the entry for key if it is still valid, counting a hit or a miss
+    private static Entry lookup(Key key, String validator)
+    {
+        synchronized( entries )
+        {
+            Entry entry = entries.get(key);
+            if( entry != null && entry.validator.equals(validator) )
+            {
+                hits++;
+                return entry;
+            }
+            misses++;
+            return null;
+        }
+    }
+
+    // Caches image, if it fits, and returns a handle on it
+    private static BufferedImage store(Key key, BufferedImage image, String validator, String etag, long lastModified)
+    {
+        if( image == null )
+        {
+            return null;
+        }
+        Entry entry = new Entry(image, validator, etag, lastModified);
+        synchronized( entries )
+        {
+            if( entry.size > budget )
+            {
+                return entry.image;
+            }
+            Entry previous = entries.put(key, entry);
+            if( previous != null )
+            {
+                bytes -= previous.size;
+            }
+            bytes += entry.size;
+            evict(budget);
+        }
+        return PLPRuntimeCopyOnWrite.share(entry.image);
+    }
+
+    // Drops the least recently used images until at most limit bytes are cached
+    private static void evict(long limit)
+    {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while( bytes > limit && it.hasNext() )
+        {
+            Entry oldest = it.next().getValue();
+            it.remove();
+            bytes -= oldest.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * @param bytes largest number of bytes of pixel data to keep, 0 disables the cache
+     */
+    public static void setBudget(long bytes)
+    {
+        synchronized( entries )
+        {
+            budget = bytes;
+            evict(budget);
+        }
+    }
+
+    public static long getBudget()
+    {
+        synchronized( entries )
+        {
+            return budget;
+        }
+    }
+
+    /**
+     * @return bytes of pixel data currently held by the cache
+     */
+    public static long getCachedBytes()
+    {
+        synchronized( entries )
+        {
+            return bytes;
+        }
+    }
+
+    public static long getHits()
+    {
+        synchronized( entries )
+        {
+            return hits;
+        }
+    }
+
+    public static long getMisses()
+    {
+        synchronized( entries )
+        {
+            return misses;
+        }
+    }
+
+    public static long getEvictions()
+    {
+        synchronized( entries )
+        {
+            return evictions;
+        }
+    }
+
+    /**
+     * @return the fraction of lookups that found a valid image, 0 before the first one
+     */
+    public static double getHitRate()
+    {
+        synchronized( entries )
+        {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : ( double ) hits / lookups;
+        }
+    }
+
+    /**
+     * Drops every cached image and resets the counters.
+     */
+    public static void clear()
+    {
+        synchronized( entries )
+        {
+            entries.clear();
+            bytes = 0;
+            hits = 0;
+            misses = 0;
+            evictions = 0;
+        }
+    }
+}
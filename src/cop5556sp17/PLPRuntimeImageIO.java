@@ -1,7 +1,9 @@
 package cop5556sp17;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -20,6 +22,22 @@ public class PLPRuntimeImageIO
     public final static String URLDesc = "Ljava/net/URL;";
 
 
+    private static volatile boolean normalize = Boolean.getBoolean("plp.runtime.normalizeImages");
+
+    /**
+     * @param enabled true to have readFromFile and readFromURL convert every image they read
+     *                with normalize
+     */
+    public static void setNormalize(boolean enabled)
+    {
+        normalize = enabled;
+    }
+
+    public static boolean isNormalize()
+    {
+        return normalize;
+    }
+
     public static final String getURLSig = "(" + StringArrayDesc + "I)" + URLDesc;
 
     public static URL getURL(String[] args, int index)
@@ -42,16 +60,61 @@ public class PLPRuntimeImageIO
     public static BufferedImage readFromFile(File f)
     {
         PLPRuntimeLog.globalLogAddEntry("readFromFile(" + f + ")");
-        BufferedImage bi;
+        PLPRuntimeImageWriter.await(f);
+        BufferedImage prefetched = PLPRuntimePrefetch.take(f);
+        if( prefetched != null )
+        {
+            return prefetched;
+        }
         try
         {
-            bi = ImageIO.read(f);
+            return load(f);
+        }
+        catch( IOException e )
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads f like readFromFile, without logging it.
+     */
+    static BufferedImage load(File f) throws IOException
+    {
+        return PLPRuntimeImageCache.file(
+            f, 1, g -> loaded(PLPRuntimePAM.isPAM(g) ? PLPRuntimePAM.read(g) : ImageIO.read(g)));
+    }
+
+    public static final String readFromFileShrinkDesc = "(" + FileDesc + "I)" + BufferedImageDesc;
+
+    /**
+     * Reads f shrunk factor times, as readFromFile followed by PLPRuntimeScaler.shrink would,
+     * down to the log, in one step. PAM files are averaged straight from their mapping.
+     *
+     * @see #decodeShrunk
+     */
+    public static BufferedImage readFromFile(File f, int factor)
+    {
+        PLPRuntimeLog.globalLogAddEntry("readFromFile(" + f + ")");
+        PLPRuntimeLog.globalLogAddEntry("shrink");
+        checkFactor(factor);
+        PLPRuntimeImageWriter.await(f);
+        try
+        {
+            return PLPRuntimeImageCache.file(f, factor, g ->
+            {
+                if( PLPRuntimePAM.isPAM(g) )
+                {
+                    // Nothing to decode; the mapped pixels are averaged as they are read
+                    return average(PLPRuntimePAM.read(g), factor);
+                }
+                return decodeShrunk(ImageIO.createImageInputStream(g), factor);
+            });
         }
         catch( IOException e )
         {
             throw new RuntimeException(e);
         }
-        return bi;
     }
 
     public static final String writeImageDesc = "(" + BufferedImageDesc
@@ -62,7 +125,7 @@ public class PLPRuntimeImageIO
         PLPRuntimeLog.globalLogAddEntry("write(" + f + ")");
         try
         {
-            ImageIO.write(image, "jpg", f);
+            PLPRuntimeImageWriter.write(image, f);
         }
         catch( IOException e )
         {
@@ -79,7 +142,8 @@ public class PLPRuntimeImageIO
         try
         {
             System.out.println("reading image from url " + url);
-            return ImageIO.read(url);
+            BufferedImage prefetched = PLPRuntimePrefetch.take(url);
+            return prefetched != null ? prefetched : load(url);
         }
         catch( IOException e )
         {
@@ -87,5 +151,141 @@ public class PLPRuntimeImageIO
         }
     }
 
+    /**
+     * Reads url like readFromURL, without logging it.
+     */
+    static BufferedImage load(URL url) throws IOException
+    {
+        return PLPRuntimeImageCache.url(url, 1, in -> loaded(ImageIO.read(in)));
+    }
+
+    public final static String readFromURLShrinkSig = "(Ljava/net/URL;I)" + BufferedImageDesc;
 
+    /**
+     * Reads url shrunk factor times, as readFromURL followed by PLPRuntimeScaler.shrink would.
+     *
+     * @see #decodeShrunk
+     */
+    public static BufferedImage readFromURL(URL url, int factor)
+    {
+        PLPRuntimeLog.globalLogAddEntry("readFromURL(" + url + ")");
+        PLPRuntimeLog.globalLogAddEntry("shrink");
+        checkFactor(factor);
+        try
+        {
+            return PLPRuntimeImageCache.url(
+                url, factor, in -> decodeShrunk(ImageIO.createImageInputStream(in), factor));
+        }
+        catch( IOException e )
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decodes the first image of stream and shrinks it factor times.
+     * <p>
+     * The image is decoded once, at full size, and averaged by PLPRuntimeScaler right away.
+     * Decoders of compressed formats cannot start in the middle of an image, so decoding it in
+     * strips of rows would decode every row above a strip again, which costs far more than the
+     * memory it saves. PAM files, which need no decoding, do not come here; see readFromFile.
+     *
+     * @return the shrunk image, or null if stream is null or no decoder reads it, like ImageIO.read
+     */
+    static BufferedImage decodeShrunk(ImageInputStream stream, int factor) throws IOException
+    {
+        checkFactor(factor);
+        if( stream == null )
+        {
+            return null;
+        }
+        // Closes stream
+        BufferedImage decoded = ImageIO.read(stream);
+        if( decoded == null )
+        {
+            return null;
+        }
+        return factor == 1 ? loaded(decoded) : average(decoded, factor);
+    }
+
+    private static void checkFactor(int factor)
+    {
+        if( factor < 1 )
+        {
+            throw new IllegalArgumentException("shrink factor must be positive, was " + factor);
+        }
+    }
+
+    // Shrinks an image as read factor times, handing it back to the pool
+    private static BufferedImage average(BufferedImage decoded, int factor)
+    {
+        if( normalize && !PLPRuntimeOffHeap.isOffHeap(decoded) )
+        {
+            decoded = normalize(decoded);
+        }
+        BufferedImage shrunk = PLPRuntimeImagePool.retire(PLPRuntimeScaler.average(decoded, factor), decoded);
+        return PLPRuntimeImagePool.retire(PLPRuntimeOffHeap.afterRead(shrunk), shrunk);
+    }
+
+    /**
+     * @return image as read, moved off the heap if it is large enough, see PLPRuntimeOffHeap,
+     * or else normalized if that is turned on
+     */
+    private static BufferedImage loaded(BufferedImage image)
+    {
+        BufferedImage offHeap = PLPRuntimeOffHeap.afterRead(image);
+        if( offHeap != image )
+        {
+            // Off-heap images have a packed layout already
+            return PLPRuntimeImagePool.retire(offHeap, image);
+        }
+        if( image != null && PLPRuntimeOffHeap.isOffHeap(image) )
+        {
+            // Mapped from a PAM file
+            return image;
+        }
+        return normalize ? normalize(image) : image;
+    }
+
+    /**
+     * Converts image to TYPE_INT_RGB, or TYPE_INT_ARGB if it has alpha, the layouts every op
+     * reads and writes without going through the color model. Decoders often return
+     * TYPE_3BYTE_BGR or TYPE_CUSTOM images, which would otherwise pay for the conversion in
+     * every op; here it is paid once, in one parallel pass over the rows.
+     *
+     * @param image
+     * @return image itself if it already has one of the two layouts or is null, otherwise the
+     * converted copy
+     */
+    public static BufferedImage normalize(BufferedImage image)
+    {
+        if( image == null )
+        {
+            return null;
+        }
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        if( image.getType() == type )
+        {
+            return image;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        BufferedImage normalized = PLPRuntimeImagePool.acquire(w, h, type);
+        int[] data = (( DataBufferInt ) normalized.getRaster().getDataBuffer()).getData();
+        // INT_RGB keeps the unused top byte clear
+        int mask = type == BufferedImage.TYPE_INT_RGB ? 0xFFFFFF : 0xFFFFFFFF;
+        PLPRuntimeParallel.forEachBand(w, h, (y0, y1) ->
+        {
+            int[] row = new int[w];
+            for( int y = y0; y < y1; y++ )
+            {
+                PLPRuntimeRaster.readRow(image, y, row, w);
+                for( int x = 0; x < w; x++ )
+                {
+                    data[y * w + x] = row[x] & mask;
+                }
+            }
+        });
+        return normalized;
+    }
 }
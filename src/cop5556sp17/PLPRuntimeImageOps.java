@@ -1,9 +1,8 @@
 package cop5556sp17;
 
-import java.awt.*;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PLPRuntimeImageOps
 {
@@ -24,17 +23,52 @@ public class PLPRuntimeImageOps
 
     public final static String scaleSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + "I)" + PLPRuntimeImageIO.BufferedImageDesc;
 
+    /**
+     * Returns image enlarged factor times, see PLPRuntimeScaler.
+     *
+     * @param image
+     * @param factor
+     * @return
+     */
     public static BufferedImage scale(BufferedImage image, int factor)
     {
-        PLPRuntimeLog.globalLogAddEntry("scale");
-        int w = image.getWidth();
-        int h = image.getHeight();
-        BufferedImage scaledImage = new BufferedImage(w * factor, h * factor, image.getType());
-        AffineTransform at = new AffineTransform();
-        at.scale(factor, factor);
-        AffineTransformOp op = new AffineTransformOp(at, AffineTransformOp.TYPE_BILINEAR);
-        scaledImage = op.filter(image, scaledImage);
-        return scaledImage;
+        return PLPRuntimeScaler.scale(image, factor);
+    }
+
+    public static final String cropSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + "IIII)"
+        + PLPRuntimeImageIO.BufferedImageDesc;
+
+    /**
+     * Returns the width x height region of image whose top left corner is at (x, y), clipped to
+     * the image. The result is a view: it shares the raster of image, offset and with the
+     * scanline stride of the whole image, so no pixels are copied and every op on it only
+     * touches the region. Like copyImage, it joins the copy on write group of image.
+     *
+     * @param image
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @return
+     */
+    public static BufferedImage crop(BufferedImage image, int x, int y, int width, int height)
+    {
+        PLPRuntimeLog.globalLogAddEntry("crop");
+        // Clip in long so that huge widths and heights cannot overflow
+        int x0 = ( int ) Math.max(0, Math.min(( long ) x, image.getWidth()));
+        int y0 = ( int ) Math.max(0, Math.min(( long ) y, image.getHeight()));
+        int x1 = ( int ) Math.max(x0, Math.min(( long ) x + width, image.getWidth()));
+        int y1 = ( int ) Math.max(y0, Math.min(( long ) y + height, image.getHeight()));
+        if( x1 == x0 || y1 == y0 )
+        {
+            throw new IllegalArgumentException(String.format(
+                "crop (%d, %d, %d, %d) lies outside of the %d x %d image", x, y, width, height,
+                image.getWidth(), image.getHeight()
+            ));
+        }
+        BufferedImage view = image.getSubimage(x0, y0, x1 - x0, y1 - y0);
+        PLPRuntimeCopyOnWrite.join(image, view);
+        return view;
     }
 
     public static final String addSig = "(" + PLPRuntimeImageIO.BufferedImageDesc
@@ -49,25 +83,8 @@ public class PLPRuntimeImageOps
         int h1 = i1.getHeight();
         int w = w0 <= w1 ? w0 : w1;
         int h = h0 <= h1 ? h0 : h1;
-        BufferedImage dest = new BufferedImage(w, h, i0.getType());
-        for( int i = 0; i < h; i++ )
-        {
-            for( int j = 0; j < w; j++ )
-            {
-                Color c0 = new Color(i0.getRGB(j, i));
-                Color c1 = new Color(i1.getRGB(j, i));
-                int red = ( int ) (c0.getRed() + c1.getRed());
-                int green = ( int ) (c0.getGreen() + c1.getGreen());
-                int blue = ( int ) (c0.getBlue() + c1.getBlue());
-                red = red > 255 ? 255 : (red < 0 ? 0 : red); // ensure in range
-                // [0,255]
-                green = green > 255 ? 255 : (green < 0 ? 0 : green);
-                blue = blue > 255 ? 255 : (blue < 0 ? 0 : blue);
-                Color newColor = new Color(red, green, blue);
-                dest.setRGB(j, i, newColor.getRGB());
-            }
-        }
-        return dest;
+        BufferedImage dest = PLPRuntimeImagePool.acquireLike(i0, w, h);
+        return PLPRuntimePointOps.apply(PLPRuntimePointOps.ADD, i0, i1, 0, dest, w, h);
     }
 
     public static final String subSig = "(" + PLPRuntimeImageIO.BufferedImageDesc
@@ -82,25 +99,8 @@ public class PLPRuntimeImageOps
         int h1 = i1.getHeight();
         int w = w0 <= w1 ? w0 : w1;
         int h = h0 <= h1 ? h0 : h1;
-        BufferedImage dest = new BufferedImage(w, h, i0.getType());
-        for( int i = 0; i < h; i++ )
-        {
-            for( int j = 0; j < w; j++ )
-            {
-                Color c0 = new Color(i0.getRGB(j, i));
-                Color c1 = new Color(i1.getRGB(j, i));
-                int red = ( int ) (c0.getRed() - c1.getRed());
-                int green = ( int ) (c0.getGreen() - c1.getGreen());
-                int blue = ( int ) (c0.getBlue() - c1.getBlue());
-                red = red > 255 ? 255 : (red < 0 ? 0 : red); // ensure in range
-                // [0,255]
-                green = green > 255 ? 255 : (green < 0 ? 0 : green);
-                blue = blue > 255 ? 255 : (blue < 0 ? 0 : blue);
-                Color newColor = new Color(red, green, blue);
-                dest.setRGB(j, i, newColor.getRGB());
-            }
-        }
-        return dest;
+        BufferedImage dest = PLPRuntimeImagePool.acquireLike(i0, w, h);
+        return PLPRuntimePointOps.apply(PLPRuntimePointOps.SUB, i0, i1, 0, dest, w, h);
     }
 
     public static final String mulSig = "(" + PLPRuntimeImageIO.BufferedImageDesc
@@ -111,24 +111,8 @@ public class PLPRuntimeImageOps
         PLPRuntimeLog.globalLogAddEntry("mul");
         int w = i0.getWidth();
         int h = i0.getHeight();
-        BufferedImage dest = new BufferedImage(w, h, i0.getType());
-        for( int i = 0; i < h; i++ )
-        {
-            for( int j = 0; j < w; j++ )
-            {
-                Color c0 = new Color(i0.getRGB(j, i));
-                int red = ( int ) (c0.getRed() * factor);
-                int green = ( int ) (c0.getGreen() * factor);
-                int blue = ( int ) (c0.getBlue() * factor);
-                red = red > 255 ? 255 : (red < 0 ? 0 : red); // ensure in range
-                // [0,255]
-                green = green > 255 ? 255 : (green < 0 ? 0 : green);
-                blue = blue > 255 ? 255 : (blue < 0 ? 0 : blue);
-                Color newColor = new Color(red, green, blue);
-                dest.setRGB(j, i, newColor.getRGB());
-            }
-        }
-        return dest;
+        BufferedImage dest = PLPRuntimeImagePool.acquireLike(i0, w, h);
+        return PLPRuntimePointOps.apply(PLPRuntimePointOps.MUL, i0, null, factor, dest, w, h);
     }
 
     public static final String divSig = "(" + PLPRuntimeImageIO.BufferedImageDesc
@@ -139,24 +123,8 @@ public class PLPRuntimeImageOps
         PLPRuntimeLog.globalLogAddEntry("div");
         int w = i0.getWidth();
         int h = i0.getHeight();
-        BufferedImage dest = new BufferedImage(w, h, i0.getType());
-        for( int i = 0; i < h; i++ )
-        {
-            for( int j = 0; j < w; j++ )
-            {
-                Color c0 = new Color(i0.getRGB(j, i));
-                int red = ( int ) (c0.getRed() / divisor);
-                int green = ( int ) (c0.getGreen() / divisor);
-                int blue = ( int ) (c0.getBlue() / divisor);
-                red = red > 255 ? 255 : (red < 0 ? 0 : red); // ensure in range
-                // [0,255]
-                green = green > 255 ? 255 : (green < 0 ? 0 : green);
-                blue = blue > 255 ? 255 : (blue < 0 ? 0 : blue);
-                Color newColor = new Color(red, green, blue);
-                dest.setRGB(j, i, newColor.getRGB());
-            }
-        }
-        return dest;
+        BufferedImage dest = PLPRuntimeImagePool.acquireLike(i0, w, h);
+        return PLPRuntimePointOps.apply(PLPRuntimePointOps.DIV, i0, null, divisor, dest, w, h);
     }
 
     public static final String modSig = "(" + PLPRuntimeImageIO.BufferedImageDesc
@@ -167,35 +135,181 @@ public class PLPRuntimeImageOps
         PLPRuntimeLog.globalLogAddEntry("mod");
         int w = i0.getWidth();
         int h = i0.getHeight();
-        BufferedImage dest = new BufferedImage(w, h, i0.getType());
-        for( int i = 0; i < h; i++ )
+        BufferedImage dest = PLPRuntimeImagePool.acquireLike(i0, w, h);
+        return PLPRuntimePointOps.apply(PLPRuntimePointOps.MOD, i0, null, divisor, dest, w, h);
+    }
+
+    public static final String evalSig = "(" + PLPRuntimeImageIO.StringDesc + "[" + PLPRuntimeImageIO.BufferedImageDesc
+        + "[I)" + PLPRuntimeImageIO.BufferedImageDesc;
+
+    // Opcodes of a compiled image expression, each followed by its operand index
+    private static final int PUSH = 0;
+    private static final int ADD = 1;
+    private static final int SUB = 2;
+    private static final int MUL = 3;
+    private static final int DIV = 4;
+    private static final int MOD = 5;
+
+    private static final String[] opNames = {"push", "add", "sub", "mul", "div", "mod"};
+
+    private static final Map<String, int[]> programs = new ConcurrentHashMap<>();
+
+    /**
+     * Evaluates a whole tree of image arithmetic in a single pass over the pixels.
+     * <p>
+     * program is the tree in postfix form, as space separated tokens:
+     * "i<n>" pushes images[n], "+" and "-" combine the top two images, and
+     * "*<k>", "/<k>", "%<k>" apply ints[k] to the top image. Every step saturates
+     * exactly like the corresponding add/sub/mul/div/mod call, and the result has
+     * the size of the smallest image and the type of images[0], so the value
+     * is the same as evaluating the tree one op at a time.
+     *
+     * @param program postfix expression
+     * @param images  image operands
+     * @param ints    integer operands
+     * @return a new image holding the value of the expression
+     */
+    public static BufferedImage eval(String program, BufferedImage[] images, int[] ints)
+    {
+        int[] code = programs.computeIfAbsent(program, PLPRuntimeImageOps::compile);
+        int w = Integer.MAX_VALUE;
+        int h = Integer.MAX_VALUE;
+        for( BufferedImage image : images )
         {
-            for( int j = 0; j < w; j++ )
+            w = Math.min(w, image.getWidth());
+            h = Math.min(h, image.getHeight());
+        }
+        // Keep the trace identical to the unfused calls
+        for( int pc = 0; pc < code.length; pc += 2 )
+        {
+            if( code[pc] != PUSH )
             {
-                Color c0 = new Color(i0.getRGB(j, i));
-                int red = ( int ) (c0.getRed() % divisor);
-                int green = ( int ) (c0.getGreen() % divisor);
-                int blue = ( int ) (c0.getBlue() % divisor);
-                red = red > 255 ? 255 : (red < 0 ? 0 : red); // ensure in range
-                // [0,255]
-                green = green > 255 ? 255 : (green < 0 ? 0 : green);
-                blue = blue > 255 ? 255 : (blue < 0 ? 0 : blue);
-                Color newColor = new Color(red, green, blue);
-                dest.setRGB(j, i, newColor.getRGB());
+                PLPRuntimeLog.globalLogAddEntry(opNames[code[pc]]);
             }
         }
+        BufferedImage dest = PLPRuntimeImagePool.acquireLike(images[0], w, h);
+        int width = w;
+        int depth = maxDepth(code);
+        PLPRuntimeKernels kernels = PLPRuntimeKernels.get();
+        PLPRuntimeParallel.forEachBand(w, h, (y0, y1) ->
+        {
+            int[][] stack = new int[depth][width];
+            for( int i = y0; i < y1; i++ )
+            {
+                int sp = 0;
+                for( int pc = 0; pc < code.length; pc += 2 )
+                {
+                    int operand = code[pc + 1];
+                    switch( code[pc] )
+                    {
+                        case PUSH:
+                            PLPRuntimeRaster.readRow(images[operand], i, stack[sp++], width);
+                            break;
+                        case ADD:
+                            sp--;
+                            kernels.add(stack[sp - 1], stack[sp], stack[sp - 1], width);
+                            break;
+                        case SUB:
+                            sp--;
+                            kernels.sub(stack[sp - 1], stack[sp], stack[sp - 1], width);
+                            break;
+                        case MUL:
+                            kernels.mul(stack[sp - 1], ints[operand], stack[sp - 1], width);
+                            break;
+                        case DIV:
+                            kernels.div(stack[sp - 1], ints[operand], stack[sp - 1], width);
+                            break;
+                        case MOD:
+                            kernels.mod(stack[sp - 1], ints[operand], stack[sp - 1], width);
+                            break;
+                    }
+                }
+                PLPRuntimeRaster.writeRow(dest, i, stack[0], width);
+            }
+        });
         return dest;
     }
 
+    private static int[] compile(String program)
+    {
+        String[] tokens = program.trim().split(" +");
+        int[] code = new int[tokens.length * 2];
+        int depth = 0;
+        for( int t = 0; t < tokens.length; t++ )
+        {
+            String token = tokens[t];
+            int op;
+            switch( token.charAt(0) )
+            {
+                case 'i':
+                    op = PUSH;
+                    depth++;
+                    break;
+                case '+':
+                    op = ADD;
+                    depth--;
+                    break;
+                case '-':
+                    op = SUB;
+                    depth--;
+                    break;
+                case '*':
+                    op = MUL;
+                    break;
+                case '/':
+                    op = DIV;
+                    break;
+                case '%':
+                    op = MOD;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown token '" + token + "' in image expression " + program);
+            }
+            if( depth < 1 )
+            {
+                throw new IllegalArgumentException("Stack underflow at '" + token + "' in image expression " + program);
+            }
+            code[2 * t] = op;
+            code[2 * t + 1] = token.length() > 1 ? Integer.parseInt(token.substring(1)) : 0;
+        }
+        if( depth != 1 )
+        {
+            throw new IllegalArgumentException("Image expression " + program + " leaves " + depth + " values");
+        }
+        return code;
+    }
+
+    private static int maxDepth(int[] code)
+    {
+        int depth = 0;
+        int max = 0;
+        for( int pc = 0; pc < code.length; pc += 2 )
+        {
+            if( code[pc] == PUSH )
+            {
+                max = Math.max(max, ++depth);
+            }
+            else if( code[pc] == ADD || code[pc] == SUB )
+            {
+                depth--;
+            }
+        }
+        return max;
+    }
+
     public static final String copyImageSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + ")" + PLPRuntimeImageIO.BufferedImageDesc;
 
+    /**
+     * Returns a copy of source for assignment to an image variable.
+     * The pixels are not copied here; the result shares them with source until one of the two
+     * is written in place, see PLPRuntimeCopyOnWrite.
+     *
+     * @param source
+     * @return
+     */
     public static BufferedImage copyImage(BufferedImage source)
     {
         PLPRuntimeLog.globalLogAddEntry("copyImage");
-        BufferedImage b = new BufferedImage(source.getWidth(), source.getHeight(), source.getType());
-        Graphics2D g = ( Graphics2D ) b.getGraphics();
-        g.drawImage(source, 0, 0, null);
-        g.dispose();
-        return b;
+        return PLPRuntimeCopyOnWrite.share(source);
     }
 }
@@ -0,0 +1,333 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of released BufferedImages, keyed by width, height and image type.
+ * <p>
+ * Ops get their destination images from acquire, which hands out a released image of the
+ * requested size and type when there is one. Images come back through release, called by
+ * generated code when a variable that was the only holder of an image is overwritten, and by
+ * ops for their own temporaries. Images that share their pixels with another image, see
+ * PLPRuntimeCopyOnWrite, are never pooled.
+ * <p>
+ * The pool holds at most a budget of bytes of pixel data, set with the system property
+ * plp.runtime.poolBytes or with setBudget; a budget of 0 disables pooling. When a release
+ * would go over the budget, the images that were released the longest time ago are dropped.
+ */
+public class PLPRuntimeImagePool
+{
+
+    public static final String JVMName = "cop5556sp17/PLPRuntimeImagePool";
+
+    private static final class Key
+    {
+        final int width;
+        final int height;
+        final int type;
+
+        Key(int width, int height, int type)
+        {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (width * 31 + height) * 31 + type;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if( !(obj instanceof Key) )
+            {
+                return false;
+            }
+            Key other = ( Key ) obj;
+            return width == other.width && height == other.height && type == other.type;
+        }
+    }
+
+    // Free images per key, most recently released first
+    private static final Map<Key, ArrayDeque<BufferedImage>> free = new HashMap<>();
+
+    // Every free image in the order it was released. BufferedImage keeps identity equality.
+    private static final LinkedHashMap<BufferedImage, Key> released = new LinkedHashMap<>();
+
+    private static long budget = Long.getLong("plp.runtime.poolBytes", 64L << 20);
+    private static long bytes = 0;
+
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long evictions = 0;
+
+    /**
+     * Returns an image of the given size and type. Its pixels are left over from whatever used
+     * it before, so callers must write every pixel.
+     */
+    public static BufferedImage acquire(int width, int height, int type)
+    {
+        BufferedImage image = take(width, height, type);
+        return image != null ? image : new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Returns an image of the given size to hold a result computed from image: one of the same
+     * type from the pool if image has a standard type, another off-heap image if image is one,
+     * see PLPRuntimeOffHeap, and otherwise a new image with the color model of image. Like
+     * acquire, its pixels are left over from whatever used it before.
+     */
+    public static BufferedImage acquireLike(BufferedImage image, int width, int height)
+    {
+        if( PLPRuntimeOffHeap.isOffHeap(image) )
+        {
+            return PLPRuntimeOffHeap.allocate(width, height, image.getColorModel().hasAlpha());
+        }
+        if( isStandard(image) )
+        {
+            return acquire(width, height, image.getType());
+        }
+        ColorModel cm = image.getColorModel();
+        return new BufferedImage(
+            cm, cm.createCompatibleWritableRaster(width, height), cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Returns an image of the given size and type with all pixels set to 0.
+     */
+    public static BufferedImage acquireBlank(int width, int height, int type)
+    {
+        BufferedImage image = take(width, height, type);
+        if( image == null )
+        {
+            return new BufferedImage(width, height, type);
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        for( int bank = 0; bank < buffer.getNumBanks(); bank++ )
+        {
+            if( buffer instanceof DataBufferInt )
+            {
+                Arrays.fill((( DataBufferInt ) buffer).getData(bank), 0);
+            }
+            else if( buffer instanceof DataBufferByte )
+            {
+                Arrays.fill((( DataBufferByte ) buffer).getData(bank), ( byte ) 0);
+            }
+            else if( buffer instanceof DataBufferUShort )
+            {
+                Arrays.fill((( DataBufferUShort ) buffer).getData(bank), ( short ) 0);
+            }
+            else
+            {
+                for( int i = 0; i < buffer.getSize(); i++ )
+                {
+                    buffer.setElem(bank, i, 0);
+                }
+            }
+        }
+        return image;
+    }
+
+    // Removes a free image of the given size and type from the pool, or returns null
+    private static BufferedImage take(int width, int height, int type)
+    {
+        synchronized( free )
+        {
+            ArrayDeque<BufferedImage> images = free.get(new Key(width, height, type));
+            if( images == null || images.isEmpty() )
+            {
+                misses++;
+                return null;
+            }
+            BufferedImage image = images.pop();
+            released.remove(image);
+            bytes -= sizeOf(image);
+            hits++;
+            return image;
+        }
+    }
+
+    /**
+     * Hands image back to the pool. The caller must not use image, or any image it got it
+     * from, afterwards. Images that cannot be reused are ignored, and off-heap images are freed,
+     * see PLPRuntimeOffHeap.free.
+     */
+    public static void release(BufferedImage image)
+    {
+        if( image != null && PLPRuntimeOffHeap.isOffHeap(image) )
+        {
+            if( isWhole(image) )
+            {
+                PLPRuntimeOffHeap.free(image);
+            }
+            return;
+        }
+        if( image == null || !isPoolable(image) )
+        {
+            return;
+        }
+        long size = sizeOf(image);
+        synchronized( free )
+        {
+            if( size > budget || released.containsKey(image) )
+            {
+                return;
+            }
+            Key key = new Key(image.getWidth(), image.getHeight(), image.getType());
+            free.computeIfAbsent(key, k -> new ArrayDeque<>()).push(image);
+            released.put(image, key);
+            bytes += size;
+            evict(budget);
+        }
+    }
+
+    public final static String retireSig = "(" + PLPRuntimeImageIO.BufferedImageDesc
+        + PLPRuntimeImageIO.BufferedImageDesc + ")" + PLPRuntimeImageIO.BufferedImageDesc;
+
+    /**
+     * Releases previous unless it is next, and returns next. Generated code calls this when it
+     * replaces an image nothing else refers to, or when an op has consumed a temporary.
+     *
+     * @param next     image that takes the place of previous
+     * @param previous image that is no longer needed, may be null
+     * @return next
+     */
+    public static BufferedImage retire(BufferedImage next, BufferedImage previous)
+    {
+        if( previous != next )
+        {
+            release(previous);
+        }
+        return next;
+    }
+
+    /**
+     * @return true if the type of image alone determines its color model, so that any image of
+     * the same size and type can stand in for it. Indexed images carry their own palette.
+     */
+    static boolean isStandard(BufferedImage image)
+    {
+        return image.getType() != BufferedImage.TYPE_CUSTOM && !(image.getColorModel() instanceof IndexColorModel);
+    }
+
+    private static boolean isPoolable(BufferedImage image)
+    {
+        return isStandard(image) && isWhole(image) && !PLPRuntimeCopyOnWrite.isShared(image);
+    }
+
+    // Sub-images and images over foreign rasters cannot be handed out as whole images
+    private static boolean isWhole(BufferedImage image)
+    {
+        WritableRaster raster = image.getRaster();
+        return raster.getParent() == null
+            && raster.getMinX() == 0 && raster.getMinY() == 0
+            && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+    }
+
+    static long sizeOf(BufferedImage image)
+    {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return ( long ) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    // Drops the oldest released images until at most limit bytes are pooled
+    private static void evict(long limit)
+    {
+        Iterator<Map.Entry<BufferedImage, Key>> it = released.entrySet().iterator();
+        while( bytes > limit && it.hasNext() )
+        {
+            Map.Entry<BufferedImage, Key> oldest = it.next();
+            it.remove();
+            free.get(oldest.getValue()).removeLastOccurrence(oldest.getKey());
+            bytes -= sizeOf(oldest.getKey());
+            evictions++;
+        }
+    }
+
+    /**
+     * @param bytes largest number of bytes of pixel data to keep, 0 disables the pool
+     */
+    public static void setBudget(long bytes)
+    {
+        synchronized( free )
+        {
+            budget = bytes;
+            evict(budget);
+        }
+    }
+
+    public static long getBudget()
+    {
+        synchronized( free )
+        {
+            return budget;
+        }
+    }
+
+    /**
+     * @return bytes of pixel data currently held by the pool
+     */
+    public static long getPooledBytes()
+    {
+        synchronized( free )
+        {
+            return bytes;
+        }
+    }
+
+    public static long getHits()
+    {
+        synchronized( free )
+        {
+            return hits;
+        }
+    }
+
+    public static long getMisses()
+    {
+        synchronized( free )
+        {
+            return misses;
+        }
+    }
+
+    public static long getEvictions()
+    {
+        synchronized( free )
+        {
+            return evictions;
+        }
+    }
+
+    /**
+     * Drops every pooled image and resets the counters.
+     */
+    public static void clear()
+    {
+        synchronized( free )
+        {
+            free.clear();
+            released.clear();
+            bytes = 0;
+            hits = 0;
+            misses = 0;
+            evictions = 0;
+        }
+    }
+}
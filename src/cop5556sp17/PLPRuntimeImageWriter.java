@@ -0,0 +1,424 @@
+package cop5556sp17;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes the images written to files, for PLPRuntimeImageIO.write.
+ * <p>
+ * The format follows the extension of the file: png, jpg or jpeg, bmp, gif, and pam, see
+ * PLPRuntimePAM; files with any other extension are written as JPEG, as they always were.
+ * Alpha is dropped for formats that cannot store it. The JPEG quality, from 0 to 1, and the
+ * PNG deflate level, from 0 to 9, can be set with the system properties plp.runtime.jpegQuality
+ * and plp.runtime.pngLevel, or with setJpegQuality and setPngLevel; the encoder's defaults are
+ * used otherwise. plp.runtime.fastEncode, or setFastest, trades file size for speed and writes
+ * PNG at level 1. The PNG writer of Java 8 has no level to set and ignores it.
+ * <p>
+ * With plp.runtime.writeBehind, or setWriteBehind, writes are queued and encoded on a pool of
+ * daemon threads while the program goes on. A queued image is held through a
+ * PLPRuntimeCopyOnWrite handle until it is encoded, so ops do not write into it or hand it to
+ * the pool in the meantime. Writes to the same file are encoded in the order they were made,
+ * reads of a file wait for the writes queued for it, and generated code calls flush when run
+ * returns and flushAfter when it throws, so no write outlives the program that made it. An
+ * error while encoding is thrown from the flush that waited for the write.
+ * <p>
+ * Every format is encoded into a new file next to the old one and moved over it once complete,
+ * so a write that fails or is cut short leaves the old file as it was.
+ */
+public class PLPRuntimeImageWriter
+{
+
+    public static final String JVMName = "cop5556sp17/PLPRuntimeImageWriter";
+
+    public final static String flushSig = "()V";
+
+    public final static String flushAfterSig = "(Ljava/lang/Throwable;)Ljava/lang/Throwable;";
+
+    private static volatile float jpegQuality = floatProperty("plp.runtime.jpegQuality", -1);
+    private static volatile int pngLevel = Integer.getInteger("plp.runtime.pngLevel", -1);
+    private static volatile boolean fastest = Boolean.getBoolean("plp.runtime.fastEncode");
+    private static volatile boolean writeBehind = Boolean.getBoolean("plp.runtime.writeBehind");
+
+    /**
+     * Like Integer.getInteger, a missing or malformed value yields def rather than an exception
+     */
+    private static float floatProperty(String name, float def)
+    {
+        try
+        {
+            return Float.parseFloat(System.getProperty(name, "").trim());
+        }
+        catch( NumberFormatException e )
+        {
+            return def;
+        }
+    }
+
+    /**
+     * @param quality JPEG quality from 0 to 1, or -1 for the encoder's default
+     */
+    public static void setJpegQuality(float quality)
+    {
+        jpegQuality = quality;
+    }
+
+    public static float getJpegQuality()
+    {
+        return jpegQuality;
+    }
+
+    /**
+     * @param level PNG deflate level from 0, no compression, to 9, or -1 for the encoder's default
+     */
+    public static void setPngLevel(int level)
+    {
+        pngLevel = level;
+    }
+
+    public static int getPngLevel()
+    {
+        return pngLevel;
+    }
+
+    /**
+     * @param enabled true to encode as fast as the encoder allows, regardless of the size of the file
+     */
+    public static void setFastest(boolean enabled)
+    {
+        fastest = enabled;
+    }
+
+    public static boolean isFastest()
+    {
+        return fastest;
+    }
+
+    /**
+     * @param enabled true to encode in the background, see flush
+     */
+    public static void setWriteBehind(boolean enabled)
+    {
+        writeBehind = enabled;
+    }
+
+    public static boolean isWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    private static final class Threads
+    {
+        private static final AtomicInteger count = new AtomicInteger();
+
+        static final ExecutorService pool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), task ->
+            {
+                Thread thread = new Thread(task, "plp-writer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    // Last write queued per file, by absolute path
+    private static final Map<String, CompletableFuture<Throwable>> queued = new HashMap<>();
+
+    // Every write queued since the last flush, each completing with its failure or null
+    private static final List<CompletableFuture<Throwable>> writes = new ArrayList<>();
+
+    /**
+     * Writes image to f now, or queues it if writing behind.
+     */
+    static void write(BufferedImage image, File f) throws IOException
+    {
+        if( !writeBehind )
+        {
+            encode(image, f);
+            return;
+        }
+        // Keeps ops from writing into the pixels until they are encoded
+        BufferedImage handle = PLPRuntimeCopyOnWrite.share(image);
+        String key = f.getAbsolutePath();
+        synchronized( queued )
+        {
+            CompletableFuture<Throwable> previous = queued.get(key);
+            CompletableFuture<Throwable> write = previous == null
+                ? CompletableFuture.supplyAsync(() -> encodeQuietly(handle, f), Threads.pool)
+                : previous.thenApplyAsync(failure -> encodeQuietly(handle, f), Threads.pool);
+            queued.put(key, write);
+            writes.add(write);
+        }
+    }
+
+    // Encodes image to f and returns what went wrong, if anything
+    private static Throwable encodeQuietly(BufferedImage image, File f)
+    {
+        try
+        {
+            encode(image, f);
+            return null;
+        }
+        catch( IOException | RuntimeException e )
+        {
+            return e;
+        }
+    }
+
+    /**
+     * Waits for the writes queued for f.
+     */
+    static void await(File f)
+    {
+        CompletableFuture<Throwable> last;
+        synchronized( queued )
+        {
+            if( queued.isEmpty() )
+            {
+                return;
+            }
+            last = queued.get(f.getAbsolutePath());
+        }
+        if( last != null )
+        {
+            last.join();
+        }
+    }
+
+    /**
+     * Waits for every queued write to be encoded.
+     *
+     * @throws RuntimeException if one of them failed
+     */
+    public static void flush()
+    {
+        List<Throwable> failures = drain();
+        if( failures.isEmpty() )
+        {
+            return;
+        }
+        Iterator<Throwable> it = failures.iterator();
+        RuntimeException failure = new RuntimeException(it.next());
+        while( it.hasNext() )
+        {
+            failure.addSuppressed(it.next());
+        }
+        throw failure;
+    }
+
+    /**
+     * Waits for every queued write to be encoded, when run is about to throw thrown.
+     *
+     * @return thrown, with the failures of the writes added as suppressed
+     */
+    public static Throwable flushAfter(Throwable thrown)
+    {
+        for( Throwable failure : drain() )
+        {
+            thrown.addSuppressed(failure);
+        }
+        return thrown;
+    }
+
+    // Waits for the writes queued since the last flush and returns their failures
+    private static List<Throwable> drain()
+    {
+        List<CompletableFuture<Throwable>> waiting;
+        synchronized( queued )
+        {
+            if( writes.isEmpty() )
+            {
+                return new ArrayList<>();
+            }
+            waiting = new ArrayList<>(writes);
+            writes.clear();
+            queued.clear();
+        }
+        List<Throwable> failures = new ArrayList<>();
+        for( CompletableFuture<Throwable> write : waiting )
+        {
+            Throwable failure = write.join();
+            if( failure != null )
+            {
+                failures.add(failure);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return the format f is written in: the informal name of an ImageIO format, or pam
+     */
+    static String format(File f)
+    {
+        if( PLPRuntimePAM.hasPAMName(f) )
+        {
+            return "pam";
+        }
+        String name = f.getName().toLowerCase();
+        String extension = name.substring(name.lastIndexOf('.') + 1);
+        switch( extension )
+        {
+            case "png":
+            case "bmp":
+            case "gif":
+                return extension;
+            default:
+                return "jpeg";
+        }
+    }
+
+    private static void encode(BufferedImage image, File f) throws IOException
+    {
+        String format = format(f);
+        if( format.equals("pam") )
+        {
+            PLPRuntimePAM.write(image, f);
+            return;
+        }
+        // Encoders handle the rasters of off-heap images poorly, if at all
+        BufferedImage heap = PLPRuntimeOffHeap.toHeap(image);
+        if( heap.getColorModel().hasAlpha() && (format.equals("jpeg") || format.equals("bmp")) )
+        {
+            heap = opaque(heap);
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if( !writers.hasNext() )
+        {
+            throw new IOException("no " + format + " encoder for " + f);
+        }
+        ImageWriter writer = writers.next();
+        try
+        {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            configure(param, format);
+            Path temp = createTemp(f);
+            try
+            {
+                try( ImageOutputStream out = ImageIO.createImageOutputStream(temp.toFile()) )
+                {
+                    if( out == null )
+                    {
+                        throw new IOException("cannot write " + f);
+                    }
+                    writer.setOutput(out);
+                    writer.write(null, new IIOImage(heap, null, null), param);
+                }
+                replace(temp, f);
+            }
+            finally
+            {
+                Files.deleteIfExists(temp);
+            }
+        }
+        finally
+        {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Creates a new empty file next to f, to be moved over f with replace.
+     */
+    static Path createTemp(File f) throws IOException
+    {
+        // Not with Files.createTempFile, which would make it readable by its owner only
+        Path dir = f.getAbsoluteFile().getParentFile().toPath();
+        while( true )
+        {
+            String suffix = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            Path temp = dir.resolve("." + f.getName() + "." + suffix + ".tmp");
+            try
+            {
+                Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+                return temp;
+            }
+            catch( FileAlreadyExistsException e )
+            {
+                // Try another name
+            }
+        }
+    }
+
+    /**
+     * Moves temp over f, atomically where the file system can.
+     */
+    static void replace(Path temp, File f) throws IOException
+    {
+        try
+        {
+            Files.move(temp, f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch( AtomicMoveNotSupportedException e )
+        {
+            Files.move(temp, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void configure(ImageWriteParam param, String format)
+    {
+        if( !param.canWriteCompressed() )
+        {
+            return;
+        }
+        switch( format )
+        {
+            case "jpeg":
+                float quality = jpegQuality;
+                if( quality >= 0 && quality <= 1 )
+                {
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality(quality);
+                }
+                break;
+            case "png":
+                int level = fastest ? 1 : pngLevel;
+                if( level >= 0 && level <= 9 )
+                {
+                    // The PNG writer deflates at level 9 - round(9 * quality)
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality((9 - level) / 9f);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Copies image into a TYPE_INT_RGB image, dropping alpha
+    private static BufferedImage opaque(BufferedImage image)
+    {
+        int w = image.getWidth();
+        BufferedImage rgb = new BufferedImage(w, image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        PLPRuntimeParallel.forEachBand(w, image.getHeight(), (y0, y1) ->
+        {
+            int[] row = new int[w];
+            for( int y = y0; y < y1; y++ )
+            {
+                PLPRuntimeRaster.readRow(image, y, row, w);
+                PLPRuntimeRaster.writeRow(rgb, y, row, w);
+            }
+        });
+        return rgb;
+    }
+}
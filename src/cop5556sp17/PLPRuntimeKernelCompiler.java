@@ -0,0 +1,308 @@
+package cop5556sp17;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles convolution kernels into classes that apply them to one channel of a row.
+ * <p>
+ * The generated apply method has the loop over the kernel unrolled and the weights inlined as
+ * constants. Taps with a weight of 0 are left out, and taps that share a weight are added up
+ * before they are multiplied, so the 3x3 blur costs eight additions and one multiplication per
+ * sample. Weights of 1 and -1 need no multiplication at all.
+ * <p>
+ * Kernels are compiled once per set of fixed point weights, however many float kernels round
+ * to them, and the classes are all defined by one class loader. Compilation can be turned off
+ * with the system property plp.runtime.compileKernels=false; it is skipped as well when ASM is
+ * not on the class path and for kernels with more than MAX_TAPS taps, and the convolver then
+ * interprets the kernel.
+ */
+public class PLPRuntimeKernelCompiler
+{
+
+    /**
+     * One channel of a convolution with a fixed kernel
+     */
+    public interface Channel
+    {
+        /**
+         * For every x in [x0, x1), sums weight times rows[j][x + i] over the kernel taps (i, j),
+         * shifts the sum right by the kernel's fixed point shift, saturates it to [0, 255] and
+         * ors it into out[x] at bit position.
+         *
+         * @param rows     samples of the channel, one padded array per kernel row
+         * @param position bit position of the channel in a packed pixel
+         */
+        void apply(int[][] rows, int x0, int x1, int position, int[] out);
+    }
+
+    private static final boolean enabled =
+        Boolean.parseBoolean(System.getProperty("plp.runtime.compileKernels", "true"));
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Defines the generated classes. Only ASM itself is needed to compile kernels, not the
+     * compiler's CodeGenUtils or the ASM util classes it uses.
+     */
+    private static final class KernelLoader extends ClassLoader
+    {
+        static final KernelLoader instance = new KernelLoader();
+
+        KernelLoader()
+        {
+            super(PLPRuntimeKernelCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytecode)
+        {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+
+    private static final class Shape
+    {
+        final int width;
+        final int height;
+        final int[] weights;
+        final int shift;
+
+        Shape(int width, int height, int[] weights, int shift)
+        {
+            this.width = width;
+            this.height = height;
+            this.weights = weights;
+            this.shift = shift;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (width * 31 + height) * 31 + Arrays.hashCode(weights) + shift;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if( !(obj instanceof Shape) )
+            {
+                return false;
+            }
+            Shape other = ( Shape ) obj;
+            return width == other.width && height == other.height && shift == other.shift
+                && Arrays.equals(weights, other.weights);
+        }
+    }
+
+    // Kernels compiled so far; those that failed to compile are not kept
+    private static final Map<Shape, Channel> compiled = new ConcurrentHashMap<>();
+
+    // Kernels with more taps than this would make apply too large for the JIT to compile
+    private static final int MAX_TAPS = 256;
+
+    /**
+     * @param weights width x height fixed point weights, row by row
+     * @param shift   fixed point shift of the weights
+     * @return the compiled kernel, or null if kernels are not compiled or the kernel is too large
+     */
+    static Channel compile(int width, int height, int[] weights, int shift)
+    {
+        int taps = 0;
+        for( int weight : weights )
+        {
+            taps += weight != 0 ? 1 : 0;
+        }
+        if( !enabled || taps > MAX_TAPS )
+        {
+            return null;
+        }
+        Shape shape = new Shape(width, height, Arrays.copyOf(weights, width * height), shift);
+        return compiled.computeIfAbsent(shape, PLPRuntimeKernelCompiler::load);
+    }
+
+    // Generates and instantiates the class of shape, or returns null if that fails
+    private static Channel load(Shape shape)
+    {
+        try
+        {
+            String name = "cop5556sp17/PLPRuntimeKernel" + count.incrementAndGet();
+            byte[] bytecode = generate(name, shape.width, shape.height, shape.weights, shape.shift);
+            Class<?> kernel = KernelLoader.instance.define(name.replace('/', '.'), bytecode);
+            return ( Channel ) kernel.getDeclaredConstructor().newInstance();
+        }
+        catch( LinkageError | ReflectiveOperationException e )
+        {
+            return null;
+        }
+    }
+
+    // Local variable slots of apply
+    private static final int ROWS = 1;
+    private static final int X0 = 2;
+    private static final int X1 = 3;
+    private static final int POSITION = 4;
+    private static final int OUT = 5;
+    private static final int X = 6;
+    private static final int SUM = 7;
+    // Followed by the arrays of the kernel rows that have any taps
+    private static final int FIRST_ROW = 8;
+
+    private static byte[] generate(String name, int width, int height, int[] weights, int shift)
+    {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(
+            52, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, name, null, "java/lang/Object",
+            new String[]{"cop5556sp17/PLPRuntimeKernelCompiler$Channel"}
+        );
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+
+        // Taps grouped by weight, in the order the weights first occur
+        Map<Integer, List<int[]>> taps = new LinkedHashMap<>();
+        boolean[] used = new boolean[height];
+        for( int j = 0; j < height; j++ )
+        {
+            for( int i = 0; i < width; i++ )
+            {
+                int weight = weights[j * width + i];
+                if( weight != 0 )
+                {
+                    taps.computeIfAbsent(weight, k -> new ArrayList<>()).add(new int[]{i, j});
+                    used[j] = true;
+                }
+            }
+        }
+
+        mv = cw.visitMethod(ACC_PUBLIC, "apply", "([[IIII[I)V", null, null);
+        mv.visitCode();
+        for( int j = 0; j < height; j++ )
+        {
+            if( used[j] )
+            {
+                mv.visitVarInsn(ALOAD, ROWS);
+                mv.visitLdcInsn(j);
+                mv.visitInsn(AALOAD);
+                mv.visitVarInsn(ASTORE, FIRST_ROW + j);
+            }
+        }
+        mv.visitVarInsn(ILOAD, X0);
+        mv.visitVarInsn(ISTORE, X);
+        Label test = new Label();
+        Label end = new Label();
+        mv.visitLabel(test);
+        mv.visitVarInsn(ILOAD, X);
+        mv.visitVarInsn(ILOAD, X1);
+        mv.visitJumpInsn(IF_ICMPGE, end);
+
+        // Stack: sum
+        boolean first = true;
+        for( Map.Entry<Integer, List<int[]>> group : taps.entrySet() )
+        {
+            int weight = group.getKey();
+            List<int[]> samples = group.getValue();
+            for( int k = 0; k < samples.size(); k++ )
+            {
+                int[] tap = samples.get(k);
+                mv.visitVarInsn(ALOAD, FIRST_ROW + tap[1]);
+                mv.visitVarInsn(ILOAD, X);
+                if( tap[0] != 0 )
+                {
+                    mv.visitLdcInsn(tap[0]);
+                    mv.visitInsn(IADD);
+                }
+                mv.visitInsn(IALOAD);
+                if( k > 0 )
+                {
+                    mv.visitInsn(IADD);
+                }
+            }
+            if( weight == -1 && !first )
+            {
+                mv.visitInsn(ISUB);
+                continue;
+            }
+            if( weight == -1 )
+            {
+                mv.visitInsn(INEG);
+            }
+            else if( weight != 1 )
+            {
+                mv.visitLdcInsn(weight);
+                mv.visitInsn(IMUL);
+            }
+            if( !first )
+            {
+                mv.visitInsn(IADD);
+            }
+            first = false;
+        }
+        if( first )
+        {
+            mv.visitInsn(ICONST_0);
+        }
+        if( shift != 0 )
+        {
+            mv.visitLdcInsn(shift);
+            mv.visitInsn(ISHR);
+        }
+
+        // The same branch free saturation as PLPRuntimeKernels.clamp
+        mv.visitVarInsn(ISTORE, SUM);
+        mv.visitVarInsn(ILOAD, SUM);
+        mv.visitVarInsn(ILOAD, SUM);
+        mv.visitLdcInsn(31);
+        mv.visitInsn(ISHR);
+        mv.visitInsn(ICONST_M1);
+        mv.visitInsn(IXOR);
+        mv.visitInsn(IAND);
+        mv.visitVarInsn(ISTORE, SUM);
+        mv.visitVarInsn(ILOAD, SUM);
+        mv.visitLdcInsn(255);
+        mv.visitVarInsn(ILOAD, SUM);
+        mv.visitInsn(ISUB);
+        mv.visitLdcInsn(31);
+        mv.visitInsn(ISHR);
+        mv.visitInsn(IOR);
+        mv.visitLdcInsn(255);
+        mv.visitInsn(IAND);
+        mv.visitVarInsn(ILOAD, POSITION);
+        mv.visitInsn(ISHL);
+        mv.visitVarInsn(ISTORE, SUM);
+
+        // out[x] |= sum
+        mv.visitVarInsn(ALOAD, OUT);
+        mv.visitVarInsn(ILOAD, X);
+        mv.visitInsn(DUP2);
+        mv.visitInsn(IALOAD);
+        mv.visitVarInsn(ILOAD, SUM);
+        mv.visitInsn(IOR);
+        mv.visitInsn(IASTORE);
+
+        mv.visitIincInsn(X, 1);
+        mv.visitJumpInsn(GOTO, test);
+        mv.visitLabel(end);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
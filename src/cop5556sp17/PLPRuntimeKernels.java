@@ -0,0 +1,315 @@
+package cop5556sp17;
+
+/**
+ * Row kernels behind the per-pixel image ops.
+ * <p>
+ * Every kernel reads packed 0xAARRGGBB pixels and writes opaque pixels whose channels
+ * have been saturated to [0, 255]. out may be the same array as an input.
+ * <p>
+ * The backend is picked when the class is loaded, from the system property
+ * plp.runtime.kernels, or later with setBackend: "packed" (the default) works on all three
+ * channels of a pixel at once, as 8 bit lanes of a single int; "scalar" unpacks every channel.
+ * Ops pick up a new backend from their next call on.
+ */
+public abstract class PLPRuntimeKernels
+{
+
+    private static volatile PLPRuntimeKernels instance = select(System.getProperty("plp.runtime.kernels", "packed"));
+
+    static PLPRuntimeKernels select(String name)
+    {
+        if( "scalar".equals(name) )
+        {
+            return new Scalar();
+        }
+        return new Packed();
+    }
+
+    public static PLPRuntimeKernels get()
+    {
+        return instance;
+    }
+
+    /**
+     * @param name "scalar", or anything else for the packed backend
+     */
+    public static void setBackend(String name)
+    {
+        instance = select(name);
+    }
+
+    public abstract void add(int[] a, int[] b, int[] out, int n);
+
+    public abstract void sub(int[] a, int[] b, int[] out, int n);
+
+    public abstract void mul(int[] a, int factor, int[] out, int n);
+
+    public abstract void div(int[] a, int divisor, int[] out, int n);
+
+    public abstract void mod(int[] a, int divisor, int[] out, int n);
+
+    public abstract void gray(int[] a, int[] out, int n);
+
+    /**
+     * Clamps v to [0, 255] without branching.
+     */
+    static int clamp(int v)
+    {
+        // negative values have their sign bit smeared over them and are cleared
+        v &= ~(v >> 31);
+        // values above 255 make (255 - v) negative, which saturates every bit
+        return (v | ((255 - v) >> 31)) & 0xFF;
+    }
+
+    // 16.16 fixed point luma weights. Each is 0.299, 0.587 or 0.114 times 2^16 rounded up, which
+    // makes (v * weight) >> 16 equal to (int) (v * 0.299) etc. for every channel value v.
+    static final int LUMA_RED = 19596;
+    static final int LUMA_GREEN = 38470;
+    static final int LUMA_BLUE = 7472;
+
+    /**
+     * @return the gray level of a packed pixel, 0.299 red + 0.587 green + 0.114 blue with each
+     * term truncated, computed without floating point
+     */
+    static int luma(int c)
+    {
+        return ((((c >> 16) & 0xFF) * LUMA_RED) >> 16)
+            + ((((c >> 8) & 0xFF) * LUMA_GREEN) >> 16)
+            + (((c & 0xFF) * LUMA_BLUE) >> 16);
+    }
+
+    /**
+     * Packs clamped channels into an opaque 0xAARRGGBB pixel.
+     */
+    static int pack(int red, int green, int blue)
+    {
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * A lookup table of one op with one constant operand
+     */
+    private static final class Table
+    {
+        final int operand;
+        final int[] values;
+
+        Table(int operand, int[] values)
+        {
+            this.operand = operand;
+            this.values = values;
+        }
+    }
+
+    // The last table built for each op. Every row of an op asks for the same one.
+    private static volatile Table divTable;
+    private static volatile Table modTable;
+
+    /**
+     * @return the 256 entry table of clamp(v / divisor) for every channel value v
+     * @throws ArithmeticException if divisor is 0
+     */
+    static int[] divTable(int divisor)
+    {
+        Table table = divTable;
+        if( table == null || table.operand != divisor )
+        {
+            int[] values = new int[256];
+            for( int v = 0; v < 256; v++ )
+            {
+                values[v] = clamp(v / divisor);
+            }
+            divTable = table = new Table(divisor, values);
+        }
+        return table.values;
+    }
+
+    /**
+     * @return the 256 entry table of clamp(v % divisor) for every channel value v
+     * @throws ArithmeticException if divisor is 0
+     */
+    static int[] modTable(int divisor)
+    {
+        Table table = modTable;
+        if( table == null || table.operand != divisor )
+        {
+            int[] values = new int[256];
+            for( int v = 0; v < 256; v++ )
+            {
+                values[v] = clamp(v % divisor);
+            }
+            modTable = table = new Table(divisor, values);
+        }
+        return table.values;
+    }
+
+    /**
+     * Unpacks and saturates each channel separately.
+     */
+    static class Scalar extends PLPRuntimeKernels
+    {
+        @Override
+        public void add(int[] a, int[] b, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int c0 = a[j];
+                int c1 = b[j];
+                int red = ((c0 >> 16) & 0xFF) + ((c1 >> 16) & 0xFF);
+                int green = ((c0 >> 8) & 0xFF) + ((c1 >> 8) & 0xFF);
+                int blue = (c0 & 0xFF) + (c1 & 0xFF);
+                out[j] = pack(clamp(red), clamp(green), clamp(blue));
+            }
+        }
+
+        @Override
+        public void sub(int[] a, int[] b, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int c0 = a[j];
+                int c1 = b[j];
+                int red = ((c0 >> 16) & 0xFF) - ((c1 >> 16) & 0xFF);
+                int green = ((c0 >> 8) & 0xFF) - ((c1 >> 8) & 0xFF);
+                int blue = (c0 & 0xFF) - (c1 & 0xFF);
+                out[j] = pack(clamp(red), clamp(green), clamp(blue));
+            }
+        }
+
+        @Override
+        public void mul(int[] a, int factor, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int c0 = a[j];
+                int red = ((c0 >> 16) & 0xFF) * factor;
+                int green = ((c0 >> 8) & 0xFF) * factor;
+                int blue = (c0 & 0xFF) * factor;
+                out[j] = pack(clamp(red), clamp(green), clamp(blue));
+            }
+        }
+
+        @Override
+        public void div(int[] a, int divisor, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int c0 = a[j];
+                int red = ((c0 >> 16) & 0xFF) / divisor;
+                int green = ((c0 >> 8) & 0xFF) / divisor;
+                int blue = (c0 & 0xFF) / divisor;
+                out[j] = pack(clamp(red), clamp(green), clamp(blue));
+            }
+        }
+
+        @Override
+        public void mod(int[] a, int divisor, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int c0 = a[j];
+                int red = ((c0 >> 16) & 0xFF) % divisor;
+                int green = ((c0 >> 8) & 0xFF) % divisor;
+                int blue = (c0 & 0xFF) % divisor;
+                out[j] = pack(clamp(red), clamp(green), clamp(blue));
+            }
+        }
+
+        @Override
+        public void gray(int[] a, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int gray = luma(a[j]);
+                out[j] = pack(gray, gray, gray);
+            }
+        }
+    }
+
+    /**
+     * Treats the red, green and blue bytes of a pixel as three 8 bit lanes and
+     * adds or subtracts all of them with one int operation, saturating per lane.
+     * Division and remainder by a power of two are a shift and a mask over all lanes;
+     * by any other divisor they look the channels up in a table.
+     */
+    static class Packed extends Scalar
+    {
+        // Top bit of every lane
+        private static final int H = 0x808080;
+
+        // Low seven bits of every lane
+        private static final int L = 0x7F7F7F;
+
+        @Override
+        public void add(int[] a, int[] b, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int x = a[j] & 0xFFFFFF;
+                int y = b[j] & 0xFFFFFF;
+                // Adding the low seven bits cannot carry into the next lane; the top
+                // bits are then added without carry by the xor.
+                int sum = ((x & L) + (y & L)) ^ ((x ^ y) & H);
+                // Top bit of a lane is set where that lane carried out
+                int carry = ((x & y) | ((x | y) & ~sum)) & H;
+                out[j] = 0xFF000000 | sum | ((carry >>> 7) * 0xFF);
+            }
+        }
+
+        @Override
+        public void sub(int[] a, int[] b, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int x = a[j] & 0xFFFFFF;
+                int y = b[j] & 0xFFFFFF;
+                // Setting the top bit of every minuend lane keeps borrows inside the lane
+                int diff = ((x | H) - (y & L)) ^ ((x ^ ~y) & H);
+                // Top bit of a lane is set where that lane borrowed, i.e. x < y
+                int borrow = ((~x & y) | (~(x ^ y) & diff)) & H;
+                out[j] = 0xFF000000 | (diff & ~((borrow >>> 7) * 0xFF));
+            }
+        }
+
+        @Override
+        public void div(int[] a, int divisor, int[] out, int n)
+        {
+            if( divisor > 0 && (divisor & (divisor - 1)) == 0 )
+            {
+                int shift = Integer.numberOfTrailingZeros(divisor);
+                // Bits a lane keeps after the shift; the bits shifted in from the lane above are cleared
+                int mask = (0xFF >>> shift) * 0x010101;
+                for( int j = 0; j < n; j++ )
+                {
+                    out[j] = 0xFF000000 | ((a[j] >>> shift) & mask);
+                }
+                return;
+            }
+            lookUp(a, divTable(divisor), out, n);
+        }
+
+        @Override
+        public void mod(int[] a, int divisor, int[] out, int n)
+        {
+            if( divisor > 0 && (divisor & (divisor - 1)) == 0 )
+            {
+                int mask = Math.min(divisor - 1, 0xFF) * 0x010101;
+                for( int j = 0; j < n; j++ )
+                {
+                    out[j] = 0xFF000000 | (a[j] & mask);
+                }
+                return;
+            }
+            lookUp(a, modTable(divisor), out, n);
+        }
+
+        private static void lookUp(int[] a, int[] table, int[] out, int n)
+        {
+            for( int j = 0; j < n; j++ )
+            {
+                int c = a[j];
+                out[j] = 0xFF000000 | table[(c >> 16) & 0xFF] << 16 | table[(c >> 8) & 0xFF] << 8 | table[c & 0xFF];
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package cop5556sp17;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Images whose pixels live outside of the Java heap, in direct buffers.
+ * <p>
+ * A 100 megapixel image takes 400 MB as the int[] of a BufferedImage. The collector has to
+ * find room for such arrays in one piece and copies or scans them along with everything else.
+ * An off-heap image keeps its pixels in a direct ByteBuffer, packed as TYPE_INT_RGB or
+ * TYPE_INT_ARGB pixels would be, and wraps it in a BufferedImage of TYPE_CUSTOM, so generated
+ * code and ops handle it like any other image. PLPRuntimeRaster reads and writes its rows with
+ * bulk copies from the buffer, without the color model, and ops give the results for such an
+ * image another off-heap image, see PLPRuntimeImagePool.acquireLike.
+ * <p>
+ * readFromFile and readFromURL move images of at least the number of pixels set with the
+ * system property plp.runtime.offHeapPixels, or with setThreshold, off the heap; 0, the
+ * default, keeps every image on the heap. Frames get a heap copy, see toHeap.
+ * <p>
+ * PLPRuntimeImagePool.release, which generated code calls when the last variable holding the
+ * image is overwritten, detaches the pixels from an image that shares them with no other, so
+ * that the image no longer keeps its buffer alive. The image must not be used afterwards;
+ * reading or writing its rows then throws IllegalStateException. The memory itself is given
+ * back by the buffer's cleaner once the collector finds the buffer unreachable, never while a
+ * row copy still holds a view of it; running short of direct memory makes the JVM collect
+ * before it gives up.
+ */
+public class PLPRuntimeOffHeap
+{
+
+    private static volatile long threshold = Long.getLong("plp.runtime.offHeapPixels", 0);
+
+    /**
+     * @param pixels images read with at least this many pixels are moved off the heap, 0 for none
+     */
+    public static void setThreshold(long pixels)
+    {
+        threshold = pixels;
+    }
+
+    public static long getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Pixels of an off-heap image, one int per pixel, either 0xAARRGGBB or, for pixels mapped
+     * from a file, 0xRRGGBBAA.
+     */
+    static final class Pixels extends DataBuffer
+    {
+        // The pixels, as ints; null once detached
+        private volatile IntBuffer buffer;
+        private final boolean rgba;
+
+        Pixels(int size)
+        {
+            this(ByteBuffer.allocateDirect(Math.multiplyExact(size, 4)).order(ByteOrder.nativeOrder()), false);
+        }
+
+        Pixels(ByteBuffer memory, boolean rgba)
+        {
+            this(memory.asIntBuffer(), rgba);
+        }
+
+        private Pixels(IntBuffer buffer, boolean rgba)
+        {
+            super(TYPE_INT, buffer.capacity());
+            this.buffer = buffer;
+            this.rgba = rgba;
+        }
+
+        /**
+         * Copies w pixels starting at index into row, as 0xAARRGGBB. Safe to call from several
+         * threads at once.
+         */
+        void read(int index, int[] row, int w)
+        {
+            IntBuffer pixels = buffer();
+            // Through Buffer, whose position(int) does not return IntBuffer before Java 9
+            (( Buffer ) pixels).position(index);
+            pixels.get(row, 0, w);
+            if( rgba )
+            {
+                for( int x = 0; x < w; x++ )
+                {
+                    row[x] = Integer.rotateRight(row[x], 8);
+                }
+            }
+        }
+
+        /**
+         * Copies the first w pixels of row, 0xAARRGGBB, to index. Safe to call from several
+         * threads at once.
+         */
+        void write(int index, int[] row, int w)
+        {
+            if( rgba )
+            {
+                IntBuffer pixels = attached();
+                for( int x = 0; x < w; x++ )
+                {
+                    pixels.put(index + x, Integer.rotateLeft(row[x], 8));
+                }
+                return;
+            }
+            IntBuffer pixels = buffer();
+            (( Buffer ) pixels).position(index);
+            pixels.put(row, 0, w);
+        }
+
+        // A view of the pixels with its own position, for the relative bulk get and put
+        private IntBuffer buffer()
+        {
+            return attached().duplicate();
+        }
+
+        // The pixels themselves; only absolute get and put may be used on them
+        private IntBuffer attached()
+        {
+            IntBuffer pixels = buffer;
+            if( pixels == null )
+            {
+                throw new IllegalStateException("off-heap image used after it was released");
+            }
+            return pixels;
+        }
+
+        @Override
+        public int getElem(int bank, int i)
+        {
+            return attached().get(i + offset);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val)
+        {
+            attached().put(i + offset, val);
+        }
+
+        void detach()
+        {
+            buffer = null;
+        }
+    }
+
+    private static final int[] RGB_MASKS = {0xFF0000, 0xFF00, 0xFF};
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF, 0);
+    private static final DirectColorModel ARGB = new DirectColorModel(32, 0xFF0000, 0xFF00, 0xFF, 0xFF000000);
+    private static final DirectColorModel RGBA = new DirectColorModel(32, 0xFF000000, 0xFF0000, 0xFF00, 0xFF);
+
+    /**
+     * Returns a new off-heap image, with the layout of TYPE_INT_ARGB if alpha is true and of
+     * TYPE_INT_RGB otherwise. Its pixels are not initialized.
+     */
+    public static BufferedImage allocate(int width, int height, boolean alpha)
+    {
+        Pixels pixels = new Pixels(Math.multiplyExact(width, height));
+        return image(pixels, width, height, alpha ? ARGB : RGB, alpha ? ARGB.getMasks() : RGB_MASKS);
+    }
+
+    /**
+     * Returns an off-heap image over memory, which holds width x height pixels as the bytes
+     * R, G, B and A, in the order the pixels and their rows appear in the image, and must have
+     * big endian byte order. Writes to the image go to memory, which is freed with the image.
+     */
+    static BufferedImage wrap(ByteBuffer memory, int width, int height)
+    {
+        Pixels pixels = new Pixels(memory, true);
+        if( pixels.getSize() < ( long ) width * height )
+        {
+            throw new IllegalArgumentException("buffer too small for a " + width + " x " + height + " image");
+        }
+        return image(pixels, width, height, RGBA, RGBA.getMasks());
+    }
+
+    private static BufferedImage image(Pixels pixels, int width, int height, DirectColorModel cm, int[] masks)
+    {
+        SinglePixelPackedSampleModel sm = new SinglePixelPackedSampleModel(
+            DataBuffer.TYPE_INT, width, height, masks);
+        // Raster.createWritableRaster would insist on a DataBufferInt for this sample model
+        WritableRaster raster = new WritableRaster(sm, pixels, new Point())
+        {
+        };
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * @return true if the pixels of image, which may be a sub-image, are off the heap
+     */
+    public static boolean isOffHeap(BufferedImage image)
+    {
+        return image.getRaster().getDataBuffer() instanceof Pixels;
+    }
+
+    /**
+     * Copies image into a new off-heap image, in parallel bands of rows.
+     *
+     * @return the copy, or image itself if it is already off the heap or is null
+     */
+    public static BufferedImage toOffHeap(BufferedImage image)
+    {
+        if( image == null || isOffHeap(image) )
+        {
+            return image;
+        }
+        BufferedImage copy = allocate(image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha());
+        copyRows(image, copy);
+        return copy;
+    }
+
+    /**
+     * Copies an off-heap image onto the heap, for code outside of the runtime that keeps the
+     * image beyond the lifetime of its pixels, such as a frame showing it.
+     *
+     * @return the copy, of TYPE_INT_RGB or TYPE_INT_ARGB, or image itself if it is on the heap
+     * or is null
+     */
+    public static BufferedImage toHeap(BufferedImage image)
+    {
+        if( image == null || !isOffHeap(image) )
+        {
+            return image;
+        }
+        BufferedImage copy = new BufferedImage(
+            image.getWidth(), image.getHeight(),
+            image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB
+        );
+        copyRows(image, copy);
+        return copy;
+    }
+
+    /**
+     * @return image if it was read with at least the threshold number of pixels, moved off
+     * the heap, otherwise image itself
+     */
+    static BufferedImage afterRead(BufferedImage image)
+    {
+        if( image == null || !isLarge(image.getWidth(), image.getHeight()) )
+        {
+            return image;
+        }
+        return toOffHeap(image);
+    }
+
+    /**
+     * @return true if images read with this size are to be kept off the heap
+     */
+    static boolean isLarge(int width, int height)
+    {
+        long limit = threshold;
+        return limit > 0 && ( long ) width * height >= limit;
+    }
+
+    /**
+     * Detaches the pixels of image, which are then freed along with the last view of them that
+     * a row copy in progress may hold. Called by PLPRuntimeImagePool.release with images that
+     * are not sub-images; does nothing while other images share the pixels.
+     */
+    static void free(BufferedImage image)
+    {
+        if( !PLPRuntimeCopyOnWrite.isShared(image) )
+        {
+            (( Pixels ) image.getRaster().getDataBuffer()).detach();
+        }
+    }
+
+    private static void copyRows(BufferedImage from, BufferedImage to)
+    {
+        int w = from.getWidth();
+        PLPRuntimeParallel.forEachBand(w, from.getHeight(), (y0, y1) ->
+        {
+            int[] row = new int[w];
+            for( int y = y0; y < y1; y++ )
+            {
+                PLPRuntimeRaster.readRow(from, y, row, w);
+                PLPRuntimeRaster.writeRow(to, y, row, w);
+            }
+        });
+    }
+
+    /**
+     * Frees the memory of direct buffers, or unmaps mapped ones, ahead of the collector. Only
+     * for buffers whose owner knows that no view of them is in use anymore. Works through
+     * sun.misc.Unsafe on Java 9 and later and through the buffer's cleaner on Java 8. Where
+     * neither is accessible the memory is left to the collector.
+     */
+    static final class Cleaner
+    {
+        private static final Object unsafe;
+        private static final Method invokeCleaner;
+        private static final Method cleaner;
+
+        static
+        {
+            Object u = null;
+            Method invoke = null;
+            Method clean = null;
+            try
+            {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                try
+                {
+                    invoke = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                    Field field = unsafeClass.getDeclaredField("theUnsafe");
+                    field.setAccessible(true);
+                    u = field.get(null);
+                }
+                catch( NoSuchMethodException e )
+                {
+                    clean = ByteBuffer.allocateDirect(1).getClass().getMethod("cleaner");
+                    clean.setAccessible(true);
+                }
+            }
+            catch( ReflectiveOperationException | RuntimeException e )
+            {
+                invoke = null;
+                clean = null;
+            }
+            unsafe = u;
+            invokeCleaner = invoke;
+            cleaner = clean;
+        }
+
+        static void clean(ByteBuffer memory)
+        {
+            try
+            {
+                if( invokeCleaner != null )
+                {
+                    invokeCleaner.invoke(unsafe, memory);
+                }
+                else if( cleaner != null )
+                {
+                    Object c = cleaner.invoke(memory);
+                    if( c != null )
+                    {
+                        c.getClass().getMethod("clean").invoke(c);
+                    }
+                }
+            }
+            catch( ReflectiveOperationException | RuntimeException e )
+            {
+                // Left to the collector
+            }
+        }
+    }
+}
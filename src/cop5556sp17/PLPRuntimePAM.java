@@ -0,0 +1,370 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads and writes uncompressed images in the PAM format of Netpbm, through memory mapped files.
+ * <p>
+ * A PAM file is a short text header, starting with P7 and ending with ENDHDR, followed by the
+ * samples of every pixel, row by row, one byte each: gray (DEPTH 1), gray and alpha (2), red,
+ * green and blue (3) or red, green, blue and alpha (4). There is nothing to decode, which makes
+ * it a cheap format for the intermediate files one program writes and another reads.
+ * <p>
+ * read maps the file rather than reading it. A file with alpha is mapped privately and
+ * becomes an off-heap image over the mapping, see PLPRuntimeOffHeap, so its pixels are not
+ * copied at all until an op writes to them, and then only the pages it writes. Other files are
+ * converted from the mapping in parallel bands of rows. write maps the file it creates and
+ * fills it in parallel; it writes a new file and moves it over the old one, so images still
+ * mapped from the old one keep their pixels.
+ * <p>
+ * PLPRuntimeImageIO reads files that start with P7 this way, and PLPRuntimeImageWriter writes
+ * files named *.pam this way.
+ */
+public class PLPRuntimePAM
+{
+
+    // Largest header read looks for ENDHDR in
+    private static final int MAX_HEADER = 1 << 16;
+
+    /**
+     * @return true if f starts with the magic number of a PAM file
+     */
+    public static boolean isPAM(File f)
+    {
+        byte[] magic = new byte[3];
+        try( InputStream in = Files.newInputStream(f.toPath()) )
+        {
+            int n = 0;
+            while( n < magic.length )
+            {
+                int read = in.read(magic, n, magic.length - n);
+                if( read < 0 )
+                {
+                    return false;
+                }
+                n += read;
+            }
+        }
+        catch( IOException | RuntimeException e )
+        {
+            return false;
+        }
+        return magic[0] == 'P' && magic[1] == '7' && Character.isWhitespace(magic[2]);
+    }
+
+    /**
+     * @return true if f is named like a PAM file
+     */
+    public static boolean hasPAMName(File f)
+    {
+        return f.getName().toLowerCase().endsWith(".pam");
+    }
+
+    private static final class Header
+    {
+        int width = -1;
+        int height = -1;
+        int depth = -1;
+        int maxval = -1;
+        // Offset of the first sample in the file
+        int offset;
+    }
+
+    /**
+     * Reads the PAM file f. Files with a DEPTH of 1 become TYPE_BYTE_GRAY images, with 2 and 4
+     * images with alpha and with 3 images without; only a MAXVAL of 255 is supported.
+     *
+     * @param f
+     * @return
+     * @throws IOException if f cannot be read or is not a PAM file this supports
+     */
+    public static BufferedImage read(File f) throws IOException
+    {
+        Path path = f.toPath();
+        try( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ) )
+        {
+            Header header = header(channel, f);
+            int w = header.width;
+            int h = header.height;
+            long size = ( long ) w * h * header.depth;
+            if( header.offset + size > channel.size() )
+            {
+                throw new IOException(f + " is truncated");
+            }
+            if( size > Integer.MAX_VALUE )
+            {
+                throw new IOException(f + " is too large to map");
+            }
+            if( header.depth == 4 )
+            {
+                BufferedImage mapped = mapPrivate(path, header.offset, size, w, h);
+                if( mapped != null )
+                {
+                    return mapped;
+                }
+            }
+            MappedByteBuffer samples = channel.map(FileChannel.MapMode.READ_ONLY, header.offset, size);
+            try
+            {
+                return convert(samples, w, h, header.depth);
+            }
+            finally
+            {
+                PLPRuntimeOffHeap.Cleaner.clean(samples);
+            }
+        }
+    }
+
+    // Maps the samples copy on write, or returns null if the file cannot be opened for writing
+    private static BufferedImage mapPrivate(Path path, long offset, long size, int w, int h)
+    {
+        try( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE) )
+        {
+            MappedByteBuffer samples = channel.map(FileChannel.MapMode.PRIVATE, offset, size);
+            samples.order(ByteOrder.BIG_ENDIAN);
+            return PLPRuntimeOffHeap.wrap(samples, w, h);
+        }
+        catch( IOException | NonWritableChannelException | SecurityException e )
+        {
+            return null;
+        }
+    }
+
+    private static BufferedImage convert(ByteBuffer samples, int w, int h, int depth)
+    {
+        boolean alpha = depth == 2 || depth == 4;
+        BufferedImage image;
+        if( PLPRuntimeOffHeap.isLarge(w, h) )
+        {
+            image = PLPRuntimeOffHeap.allocate(w, h, alpha);
+        }
+        else
+        {
+            image = PLPRuntimeImagePool.acquire(
+                w, h, depth == 1 ? BufferedImage.TYPE_BYTE_GRAY
+                    : alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        }
+        int rowBytes = w * depth;
+        PLPRuntimeParallel.forEachBand(w, h, (y0, y1) ->
+        {
+            ByteBuffer in = samples.duplicate();
+            byte[] bytes = new byte[rowBytes];
+            int[] row = new int[w];
+            for( int y = y0; y < y1; y++ )
+            {
+                (( Buffer ) in).position(y * rowBytes);
+                in.get(bytes);
+                for( int x = 0, p = 0; x < w; x++, p += depth )
+                {
+                    switch( depth )
+                    {
+                        case 1:
+                            row[x] = 0xFF000000 | (bytes[p] & 0xFF) * 0x010101;
+                            break;
+                        case 2:
+                            row[x] = (bytes[p + 1] & 0xFF) << 24 | (bytes[p] & 0xFF) * 0x010101;
+                            break;
+                        case 3:
+                            row[x] = 0xFF000000 | (bytes[p] & 0xFF) << 16 | (bytes[p + 1] & 0xFF) << 8
+                                | (bytes[p + 2] & 0xFF);
+                            break;
+                        default:
+                            row[x] = (bytes[p + 3] & 0xFF) << 24 | (bytes[p] & 0xFF) << 16
+                                | (bytes[p + 1] & 0xFF) << 8 | (bytes[p + 2] & 0xFF);
+                            break;
+                    }
+                }
+                PLPRuntimeRaster.writeRow(image, y, row, w);
+            }
+        });
+        return image;
+    }
+
+    private static Header header(FileChannel channel, File f) throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(( int ) Math.min(channel.size(), MAX_HEADER));
+        while( bytes.hasRemaining() && channel.read(bytes, bytes.position()) > 0 )
+        {
+        }
+        String text = new String(bytes.array(), 0, bytes.position(), StandardCharsets.ISO_8859_1);
+        Header header = new Header();
+        int line = 0;
+        boolean first = true;
+        while( true )
+        {
+            int end = text.indexOf('\n', line);
+            if( end < 0 )
+            {
+                throw new IOException(f + " has no complete PAM header");
+            }
+            String[] tokens = text.substring(line, end).trim().split("\\s+");
+            line = end + 1;
+            if( first )
+            {
+                if( !tokens[0].equals("P7") )
+                {
+                    throw new IOException(f + " is not a PAM file");
+                }
+                first = false;
+                continue;
+            }
+            if( tokens[0].isEmpty() || tokens[0].startsWith("#") )
+            {
+                continue;
+            }
+            if( tokens[0].equals("ENDHDR") )
+            {
+                break;
+            }
+            if( tokens.length < 2 )
+            {
+                continue;
+            }
+            try
+            {
+                switch( tokens[0] )
+                {
+                    case "WIDTH":
+                        header.width = Integer.parseInt(tokens[1]);
+                        break;
+                    case "HEIGHT":
+                        header.height = Integer.parseInt(tokens[1]);
+                        break;
+                    case "DEPTH":
+                        header.depth = Integer.parseInt(tokens[1]);
+                        break;
+                    case "MAXVAL":
+                        header.maxval = Integer.parseInt(tokens[1]);
+                        break;
+                    default:
+                        // TUPLTYPE only names what DEPTH already says
+                        break;
+                }
+            }
+            catch( NumberFormatException e )
+            {
+                throw new IOException(f + " has a malformed PAM header: " + e.getMessage());
+            }
+        }
+        if( header.width <= 0 || header.height <= 0 || header.depth < 1 || header.depth > 4 || header.maxval != 255 )
+        {
+            throw new IOException(String.format(
+                "%s is a %d x %d PAM image of depth %d and maxval %d; only 1 to 4 samples of maxval 255 are supported",
+                f, header.width, header.height, header.depth, header.maxval
+            ));
+        }
+        header.offset = line;
+        return header;
+    }
+
+    /**
+     * Writes image to f as a PAM file: TYPE_BYTE_GRAY images as GRAYSCALE, other images as
+     * RGB_ALPHA if they have alpha and as RGB otherwise.
+     *
+     * @param image
+     * @param f
+     * @throws IOException
+     */
+    public static void write(BufferedImage image, File f) throws IOException
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int depth = image.getType() == BufferedImage.TYPE_BYTE_GRAY ? 1 : image.getColorModel().hasAlpha() ? 4 : 3;
+        String type = depth == 1 ? "GRAYSCALE" : depth == 4 ? "RGB_ALPHA" : "RGB";
+        String header = "P7\nWIDTH " + w + "\nHEIGHT " + h + "\nDEPTH " + depth + "\nMAXVAL 255\nTUPLTYPE " + type + "\n";
+        // Pad the header with a comment so that the samples start on a multiple of 4, where
+        // read can map them as ints
+        int pad = Math.floorMod(-(header.length() + "ENDHDR\n".length()), 4);
+        if( pad > 0 )
+        {
+            char[] spaces = new char[pad == 1 ? 3 : pad - 2];
+            Arrays.fill(spaces, ' ');
+            header += "#" + new String(spaces) + "\n";
+        }
+        header += "ENDHDR\n";
+        byte[] head = header.getBytes(StandardCharsets.ISO_8859_1);
+        long size = head.length + ( long ) w * h * depth;
+        if( size > Integer.MAX_VALUE )
+        {
+            throw new IOException("a " + w + " x " + h + " image is too large to map");
+        }
+
+        Path temp = PLPRuntimeImageWriter.createTemp(f);
+        try
+        {
+            try( FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE) )
+            {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                try
+                {
+                    out.put(head);
+                    fill(image, out, head.length, depth);
+                }
+                finally
+                {
+                    PLPRuntimeOffHeap.Cleaner.clean(out);
+                }
+            }
+            PLPRuntimeImageWriter.replace(temp, f);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Writes the samples of image to out, starting at offset
+    private static void fill(BufferedImage image, ByteBuffer out, int offset, int depth)
+    {
+        int w = image.getWidth();
+        int rowBytes = w * depth;
+        PLPRuntimeParallel.forEachBand(w, image.getHeight(), (y0, y1) ->
+        {
+            ByteBuffer samples = out.duplicate();
+            byte[] bytes = new byte[rowBytes];
+            int[] row = new int[w];
+            for( int y = y0; y < y1; y++ )
+            {
+                PLPRuntimeRaster.readRow(image, y, row, w);
+                for( int x = 0, p = 0; x < w; x++, p += depth )
+                {
+                    int argb = row[x];
+                    switch( depth )
+                    {
+                        case 1:
+                            // Rows read from TYPE_BYTE_GRAY images are gray
+                            bytes[p] = ( byte ) argb;
+                            break;
+                        case 3:
+                            bytes[p] = ( byte ) (argb >> 16);
+                            bytes[p + 1] = ( byte ) (argb >> 8);
+                            bytes[p + 2] = ( byte ) argb;
+                            break;
+                        default:
+                            bytes[p] = ( byte ) (argb >> 16);
+                            bytes[p + 1] = ( byte ) (argb >> 8);
+                            bytes[p + 2] = ( byte ) argb;
+                            bytes[p + 3] = ( byte ) (argb >>> 24);
+                            break;
+                    }
+                }
+                (( Buffer ) samples).position(offset + y * rowBytes);
+                samples.put(bytes);
+            }
+        });
+    }
+}
@@ -0,0 +1,128 @@
+package cop5556sp17;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits per-pixel work on an image into bands of rows and runs them on a ForkJoinPool.
+ * <p>
+ * Images smaller than the threshold are processed on the calling thread, where the cost
+ * of forking would outweigh the work itself. Both the pool and the threshold can be set
+ * with the system properties plp.runtime.parallelism and plp.runtime.parallelThreshold,
+ * or at run time through setPool and setThreshold.
+ */
+public class PLPRuntimeParallel
+{
+
+    /**
+     * Work to be done on the rows [y0, y1) of an image.
+     * Bands handed to the same RowBand never overlap, so implementations only
+     * need to keep their scratch buffers local to apply.
+     */
+    public interface RowBand
+    {
+        void apply(int y0, int y1);
+    }
+
+    // Smallest number of pixels a forked band is allowed to cover
+    private static final int MIN_BAND_PIXELS = 1 << 14;
+
+    private static volatile ForkJoinPool pool = createPool();
+    private static volatile int threshold = Integer.getInteger("plp.runtime.parallelThreshold", 1 << 16);
+
+    private static ForkJoinPool createPool()
+    {
+        Integer parallelism = Integer.getInteger("plp.runtime.parallelism");
+        if( parallelism == null )
+        {
+            return ForkJoinPool.commonPool();
+        }
+        return new ForkJoinPool(parallelism);
+    }
+
+    public static void setPool(ForkJoinPool pool)
+    {
+        PLPRuntimeParallel.pool = pool;
+    }
+
+    public static ForkJoinPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * @param pixels images with fewer pixels than this are processed serially
+     */
+    public static void setThreshold(int pixels)
+    {
+        threshold = pixels;
+    }
+
+    public static int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Runs band over every row of a width x height image, in parallel when the image
+     * is large enough. Returns once all rows have been processed; an exception thrown
+     * by any band is rethrown on the calling thread.
+     *
+     * @param width  width of the image, used to size the bands
+     * @param height number of rows to cover
+     * @param band   work to run for each band of rows
+     */
+    public static void forEachBand(int width, int height, RowBand band)
+    {
+        forEachBand(width, height, 1, band);
+    }
+
+    /**
+     * Like forEachBand(width, height, band), but never forks bands of fewer than minRows rows.
+     * Used by work that has to redo some rows at the edges of every band.
+     */
+    public static void forEachBand(int width, int height, int minRows, RowBand band)
+    {
+        ForkJoinPool p = pool;
+        long pixels = ( long ) width * height;
+        if( pixels < threshold || height < 2 || p.getParallelism() < 2 )
+        {
+            band.apply(0, height);
+            return;
+        }
+        // A few bands per worker lets the pool balance uneven rows
+        int rows = Math.max(1, height / (p.getParallelism() * 4));
+        rows = Math.max(rows, MIN_BAND_PIXELS / Math.max(1, width));
+        rows = Math.max(rows, minRows);
+        p.invoke(new BandTask(band, 0, height, rows));
+    }
+
+    @SuppressWarnings("serial")
+    private static class BandTask extends RecursiveAction
+    {
+        private final RowBand band;
+        private final int y0;
+        private final int y1;
+        private final int rows;
+
+        BandTask(RowBand band, int y0, int y1, int rows)
+        {
+            this.band = band;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.rows = rows;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if( y1 - y0 <= rows )
+            {
+                band.apply(y0, y1);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll(new BandTask(band, y0, mid, rows), new BandTask(band, mid, y1, rows));
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Runs a sequence of filter ops over an image in one pass, without the intermediate images.
+ * <p>
+ * A chain such as {@code a -> blur -> convolve -> gray -> b} would otherwise produce a full
+ * image after each op. Here every op becomes a stage that turns rows of its input into rows of
+ * its output, pulling input rows from the stage before it as it needs them. A stage computes
+ * its rows in order and keeps only the last few of them, as many as the next stage's kernel
+ * covers; the first stage reads the source image and the last one writes the destination.
+ * Peak memory is the destination plus, per band of rows, a kernel's height of rows per stage.
+ * <p>
+ * Bands are processed in parallel. A band recomputes the rows of every intermediate stage that
+ * its kernels reach outside of it, and a box blur stage sums the whole window of its first row
+ * before it slides it, so bands are kept PLPRuntimeBoxBlur.BAND_WINDOWS times as tall as those
+ * reaches, which bounds both costs to a small fraction of a band's work.
+ * <p>
+ * Stages exchange rows as packed 0xAARRGGBB pixels, which is exact only when storing a row into
+ * an image of the source's type and reading it back would not change it. For TYPE_BYTE_GRAY
+ * sources that holds because every row the stages compute from gray rows is gray. Other images, and
+ * blurs with radii beyond PLPRuntimeBoxBlur's running window sums, are run through the ops
+ * one at a time.
+ */
+public class PLPRuntimePipeline
+{
+
+    public static final String JVMName = "cop5556sp17/PLPRuntimePipeline";
+
+    public final static String filterSig = "(" + PLPRuntimeImageIO.BufferedImageDesc
+        + PLPRuntimeImageIO.BufferedImageDesc + "[I)" + PLPRuntimeImageIO.BufferedImageDesc;
+
+    /**
+     * Stage codes. Stages are passed as pairs of a code and an argument, the radius for
+     * BLUR_RADIUS and ignored for the others.
+     */
+    public static final int BLUR = 0;
+    public static final int BLUR_RADIUS = 1;
+    public static final int CONVOLVE = 2;
+    public static final int GRAY = 3;
+
+    /**
+     * Applies the stages to image in order and returns the result in dest, as calling the
+     * corresponding ops of PLPRuntimeFilterOps one after the other would, down to the log.
+     * If dest is null, or cannot be reused, a new BufferedImage object is created and returned.
+     *
+     * @param image  source image
+     * @param dest   image the last stage may write into
+     * @param stages code and argument of every stage
+     * @return
+     */
+    public static BufferedImage filter(BufferedImage image, BufferedImage dest, int[] stages)
+    {
+        if( !streams(image) || !streams(stages) )
+        {
+            return filterEach(image, dest, stages);
+        }
+        int n = stages.length / 2;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        PLPRuntimeConvolver.EdgeMode mode = PLPRuntimeConvolver.getEdgeMode();
+
+        // Rows each stage reads above and below the row it computes
+        int[] above = new int[n];
+        int[] below = new int[n];
+        int reach = 0;
+        for( int i = 0; i < n; i++ )
+        {
+            int code = stages[2 * i];
+            int radius = stages[2 * i + 1];
+            PLPRuntimeLog.globalLogAddEntry(code == GRAY ? "grayOp" : code == CONVOLVE ? "convolve" : "blurOp");
+            switch( code )
+            {
+                case BLUR:
+                case CONVOLVE:
+                    above[i] = 1;
+                    below[i] = 1;
+                    break;
+                case BLUR_RADIUS:
+                    if( radius < 0 || radius > PLPRuntimeBoxBlur.MAX_RADIUS )
+                    {
+                        throw new IllegalArgumentException(
+                            "blur radius must be in [0, " + PLPRuntimeBoxBlur.MAX_RADIUS + "], was " + radius);
+                    }
+                    // The window sums also drop the row just above the window
+                    above[i] = radius + 1;
+                    below[i] = radius;
+                    break;
+                case GRAY:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter stage " + code);
+            }
+            reach += above[i] + below[i];
+        }
+
+        BufferedImage out;
+        if( PLPRuntimeFilterOps.isGrayBytes() && grays(stages) )
+        {
+            // Every op after the gray one would work on a TYPE_BYTE_GRAY image. Their rows are
+            // all gray, which such an image stores exactly, so only the last one needs to be one.
+            out = PLPRuntimeFilterOps.grayDest(image, dest == image ? null : dest);
+        }
+        else
+        {
+            dest = dest == image ? null : PLPRuntimeFilterOps.reusable(image, dest);
+            out = PLPRuntimeFilterOps.compatibleDest(image, dest);
+        }
+        boolean alpha = image.getColorModel().hasAlpha();
+        PLPRuntimeParallel.forEachBand(w, h, PLPRuntimeBoxBlur.BAND_WINDOWS * reach, (y0, y1) ->
+        {
+            // First row every stage computes, from the last stage back
+            int[] firsts = new int[n + 1];
+            firsts[n] = y0;
+            for( int i = n - 1; i >= 0; i-- )
+            {
+                firsts[i] = Math.max(0, firsts[i + 1] - above[i]);
+            }
+
+            Rows rows = new Source(image, firsts[0], n > 0 ? above[0] + below[0] + 1 : 1);
+            for( int i = 0; i < n; i++ )
+            {
+                int keep = i + 1 < n ? above[i + 1] + below[i + 1] + 1 : 1;
+                switch( stages[2 * i] )
+                {
+                    case BLUR:
+                        rows = new Convolve(rows, firsts[i + 1], keep, h, alpha, PLPRuntimeFilterOps.blurKernel,
+                                            mode);
+                        break;
+                    case CONVOLVE:
+                        rows = new Convolve(rows, firsts[i + 1], keep, h, alpha,
+                                            PLPRuntimeFilterOps.sharpenKernel, mode);
+                        break;
+                    case BLUR_RADIUS:
+                        rows = new Box(rows, firsts[i + 1], keep, h, alpha, stages[2 * i + 1]);
+                        break;
+                    case GRAY:
+                        rows = new Gray(rows, firsts[i + 1], keep);
+                        break;
+                }
+            }
+            for( int y = y0; y < y1; y++ )
+            {
+                PLPRuntimeRaster.writeRow(out, y, rows.row(y), w);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * @return true if rows of image survive being written and read back unchanged, apart from
+     * the alpha of opaque images, which reads back as 0xFF
+     */
+    private static boolean streams(BufferedImage image)
+    {
+        if( PLPRuntimeOffHeap.isOffHeap(image) )
+        {
+            return true;
+        }
+        if( !PLPRuntimeImagePool.isStandard(image) )
+        {
+            return false;
+        }
+        switch( image.getType() )
+        {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return false if a stage blurs with a radius too large for running window sums; those need
+     * the whole image anyway, see PLPRuntimeBoxBlur
+     */
+    private static boolean streams(int[] stages)
+    {
+        for( int i = 0; i < stages.length; i += 2 )
+        {
+            if( stages[i] == BLUR_RADIUS && stages[i + 1] > PLPRuntimeBoxBlur.WINDOW_RADIUS )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean grays(int[] stages)
+    {
+        for( int i = 0; i < stages.length; i += 2 )
+        {
+            if( stages[i] == GRAY )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Runs the ops one at a time, handing every intermediate image back to the pool
+    private static BufferedImage filterEach(BufferedImage image, BufferedImage dest, int[] stages)
+    {
+        BufferedImage current = image;
+        for( int i = 0; i < stages.length; i += 2 )
+        {
+            BufferedImage target = i + 2 < stages.length ? null : dest;
+            BufferedImage next;
+            switch( stages[i] )
+            {
+                case BLUR:
+                    next = PLPRuntimeFilterOps.blurOp(current, target);
+                    break;
+                case BLUR_RADIUS:
+                    next = PLPRuntimeFilterOps.blurOp(current, target, stages[i + 1]);
+                    break;
+                case CONVOLVE:
+                    next = PLPRuntimeFilterOps.convolveOp(current, target);
+                    break;
+                case GRAY:
+                    next = PLPRuntimeFilterOps.grayOp(current, target);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter stage " + stages[i]);
+            }
+            if( current != image )
+            {
+                PLPRuntimeImagePool.retire(next, current);
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    /**
+     * The output of a stage. Rows are computed in increasing order, starting from the first row
+     * of the band the stage was built for, and the last keep of them are kept for the next stage.
+     */
+    private abstract static class Rows
+    {
+        private final int[][] ring;
+        private int next;
+
+        Rows(int width, int first, int keep)
+        {
+            this.ring = new int[keep][width];
+            this.next = first;
+        }
+
+        /**
+         * @return row y, which is valid until a row keep or more rows further down is asked for
+         */
+        int[] row(int y)
+        {
+            while( next <= y )
+            {
+                compute(next, ring[next % ring.length]);
+                next++;
+            }
+            return ring[y % ring.length];
+        }
+
+        abstract void compute(int y, int[] out);
+    }
+
+    private static final class Source extends Rows
+    {
+        private final BufferedImage image;
+
+        Source(BufferedImage image, int first, int keep)
+        {
+            super(image.getWidth(), first, keep);
+            this.image = image;
+        }
+
+        @Override
+        void compute(int y, int[] out)
+        {
+            PLPRuntimeRaster.readRow(image, y, out, out.length);
+        }
+    }
+
+    private static final class Gray extends Rows
+    {
+        private final Rows input;
+        private final PLPRuntimeKernels kernels = PLPRuntimeKernels.get();
+
+        Gray(Rows input, int first, int keep)
+        {
+            super(input.ring[0].length, first, keep);
+            this.input = input;
+        }
+
+        @Override
+        void compute(int y, int[] out)
+        {
+            kernels.gray(input.row(y), out, out.length);
+        }
+    }
+
+    private static final class Convolve extends Rows
+    {
+        private final Rows input;
+        private final int h;
+        private final int first;
+        private final PLPRuntimeConvolver.EdgeMode mode;
+        private final PLPRuntimeConvolver.FixedKernel kernel;
+        private final int[][][] ring;
+        private final int[] acc;
+        // Next kernel row to unpack, counted in rows of the image, possibly outside of it
+        private int loaded;
+
+        Convolve(Rows input, int first, int keep, int h, boolean alpha, float[] data,
+                 PLPRuntimeConvolver.EdgeMode mode)
+        {
+            super(input.ring[0].length, first, keep);
+            this.input = input;
+            this.h = h;
+            this.first = alpha ? 0 : 1;
+            this.mode = mode;
+            this.kernel = PLPRuntimeConvolver.kernel(3, 3, data);
+            this.ring = PLPRuntimeConvolver.ring(kernel, input.ring[0].length);
+            this.acc = new int[input.ring[0].length];
+            this.loaded = first - kernel.originY;
+        }
+
+        @Override
+        void compute(int y, int[] out)
+        {
+            int kh = kernel.height;
+            for( ; loaded <= y - kernel.originY + kh - 1; loaded++ )
+            {
+                int[] row = input.row(PLPRuntimeConvolver.index(loaded, h, mode));
+                PLPRuntimeConvolver.unpack(row, ring[Math.floorMod(loaded, kh)], first, kernel.originX, mode);
+            }
+            PLPRuntimeConvolver.convolveRow(kernel, ring, y, h, first, mode, acc, out);
+        }
+    }
+
+    private static final class Box extends Rows
+    {
+        private final Rows input;
+        private final int h;
+        private final int radius;
+        private final int first;
+        private final PLPRuntimeBoxBlur.Window window;
+
+        Box(Rows input, int first, int keep, int h, boolean alpha, int radius)
+        {
+            super(input.ring[0].length, first, keep);
+            this.input = input;
+            this.h = h;
+            this.radius = radius;
+            this.first = first;
+            this.window = new PLPRuntimeBoxBlur.Window(input.ring[0].length, radius, alpha);
+        }
+
+        @Override
+        void compute(int y, int[] out)
+        {
+            if( y == first )
+            {
+                for( int i = y - radius; i <= y + radius; i++ )
+                {
+                    window.accumulate(input.row(PLPRuntimeBoxBlur.clamp(i, h)), 1);
+                }
+            }
+            else
+            {
+                window.accumulate(input.row(PLPRuntimeBoxBlur.clamp(y + radius, h)), 1);
+                window.accumulate(input.row(PLPRuntimeBoxBlur.clamp(y - radius - 1, h)), -1);
+            }
+            window.average(out);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The per-pixel ops, add, sub, mul, div, mod and gray, with implementations specialized for
+ * the layouts of their source and destination images.
+ * <p>
+ * The general implementation reads rows through PLPRuntimeRaster, runs them through
+ * PLPRuntimeKernels and writes them back, which works for any images. For the layouts ops most
+ * often see, a dispatch table keyed by (op, source types, destination type) holds
+ * implementations that work on the DataBufferInt/DataBufferByte arrays directly instead, with
+ * no rows to unpack and pack: gray from and to INT_RGB, INT_ARGB, 3BYTE_BGR and 4BYTE_ABGR
+ * images of the same type, gray from any of those into TYPE_BYTE_GRAY, and every op on
+ * TYPE_BYTE_GRAY images. The table is consulted once per call, so each band runs one fixed
+ * implementation whose loops the JIT sees with a single receiver.
+ * <p>
+ * Specialized implementations compute exactly what the general one does. Source and
+ * destination may be the same image.
+ */
+public class PLPRuntimePointOps
+{
+
+    public static final int ADD = 0;
+    public static final int SUB = 1;
+    public static final int MUL = 2;
+    public static final int DIV = 3;
+    public static final int MOD = 4;
+    public static final int GRAY = 5;
+
+    /**
+     * One op for one combination of layouts
+     */
+    interface Kernel
+    {
+        /**
+         * Computes rows [y0, y1) of dest from the same rows of a and b.
+         *
+         * @param b   second operand of add and sub, null for the other ops
+         * @param arg factor or divisor of mul, div and mod
+         * @param w   number of pixels per row
+         */
+        void apply(BufferedImage a, BufferedImage b, int arg, BufferedImage dest, int y0, int y1, int w);
+    }
+
+    // The general kernel of every op
+    private static final Kernel[] general = new Kernel[GRAY + 1];
+
+    // Specialized kernels by key, filled in once
+    private static final Map<Integer, Kernel> specialized = new HashMap<>();
+
+    // Every key looked up so far, mapped to its specialized or general kernel
+    private static final Map<Integer, Kernel> table = new ConcurrentHashMap<>();
+
+    static
+    {
+        for( int op = ADD; op <= GRAY; op++ )
+        {
+            int code = op;
+            general[op] = (a, b, arg, dest, y0, y1, w) -> rows(code, a, b, arg, dest, y0, y1, w);
+        }
+
+        int[] colors = {
+            BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR
+        };
+        for( int type : colors )
+        {
+            boolean ints = type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB;
+            specialized.put(
+                key(GRAY, type, 0, type),
+                ints ? PLPRuntimePointOps::grayInts : PLPRuntimePointOps::grayBytes
+            );
+            specialized.put(
+                key(GRAY, type, 0, BufferedImage.TYPE_BYTE_GRAY),
+                ints ? PLPRuntimePointOps::grayIntsToLevels : PLPRuntimePointOps::grayBytesToLevels
+            );
+        }
+        int gray = BufferedImage.TYPE_BYTE_GRAY;
+        for( int op = ADD; op <= GRAY; op++ )
+        {
+            int code = op;
+            specialized.put(
+                key(op, gray, op == ADD || op == SUB ? gray : 0, gray),
+                (a, b, arg, dest, y0, y1, w) -> levels(code, a, b, arg, dest, y0, y1, w)
+            );
+        }
+    }
+
+    /**
+     * Applies op to a, and b for add and sub, writing the first w x h pixels of dest.
+     *
+     * @return dest
+     */
+    static BufferedImage apply(int op, BufferedImage a, BufferedImage b, int arg, BufferedImage dest, int w, int h)
+    {
+        Kernel kernel = kernel(op, a, b, dest);
+        PLPRuntimeParallel.forEachBand(w, h, (y0, y1) -> kernel.apply(a, b, arg, dest, y0, y1, w));
+        return dest;
+    }
+
+    /**
+     * @return the implementation of op for the layouts of a, b and dest
+     */
+    static Kernel kernel(int op, BufferedImage a, BufferedImage b, BufferedImage dest)
+    {
+        int key = key(op, type(a), type(b), type(dest));
+        return table.computeIfAbsent(key, k -> specialized.getOrDefault(k, general[op]));
+    }
+
+    // Op and the three types, each below 16
+    private static int key(int op, int a, int b, int dest)
+    {
+        return ((op * 16 + a) * 16 + b) * 16 + dest;
+    }
+
+    // Images whose layout the type does not describe count as TYPE_CUSTOM
+    private static int type(BufferedImage image)
+    {
+        return image != null && PLPRuntimeImagePool.isStandard(image) ? image.getType() : BufferedImage.TYPE_CUSTOM;
+    }
+
+    // The general implementation, one row at a time through packed pixels
+    private static void rows(int op, BufferedImage a, BufferedImage b, int arg, BufferedImage dest, int y0, int y1,
+                             int w)
+    {
+        PLPRuntimeKernels kernels = PLPRuntimeKernels.get();
+        int[] row0 = new int[w];
+        int[] row1 = b != null ? new int[w] : null;
+        for( int y = y0; y < y1; y++ )
+        {
+            PLPRuntimeRaster.readRow(a, y, row0, w);
+            switch( op )
+            {
+                case ADD:
+                    PLPRuntimeRaster.readRow(b, y, row1, w);
+                    kernels.add(row0, row1, row0, w);
+                    break;
+                case SUB:
+                    PLPRuntimeRaster.readRow(b, y, row1, w);
+                    kernels.sub(row0, row1, row0, w);
+                    break;
+                case MUL:
+                    kernels.mul(row0, arg, row0, w);
+                    break;
+                case DIV:
+                    kernels.div(row0, arg, row0, w);
+                    break;
+                case MOD:
+                    kernels.mod(row0, arg, row0, w);
+                    break;
+                case GRAY:
+                    kernels.gray(row0, row0, w);
+                    break;
+            }
+            PLPRuntimeRaster.writeRow(dest, y, row0, w);
+        }
+    }
+
+    // Gray between INT_RGB or INT_ARGB images of the same type
+    private static void grayInts(BufferedImage a, BufferedImage b, int arg, BufferedImage dest, int y0, int y1, int w)
+    {
+        WritableRaster source = a.getRaster();
+        WritableRaster target = dest.getRaster();
+        int[] s = (( DataBufferInt ) source.getDataBuffer()).getData();
+        int[] d = (( DataBufferInt ) target.getDataBuffer()).getData();
+        // INT_RGB keeps the unused top byte clear
+        int alpha = dest.getType() == BufferedImage.TYPE_INT_ARGB ? 0xFF000000 : 0;
+        for( int y = y0; y < y1; y++ )
+        {
+            int p = PLPRuntimeRaster.intOffset(source, y);
+            int q = PLPRuntimeRaster.intOffset(target, y);
+            if( s == d && p == q )
+            {
+                // In place. With a single array the JIT can vectorize the loop.
+                for( int x = p; x < p + w; x++ )
+                {
+                    d[x] = alpha | PLPRuntimeKernels.luma(d[x]) * 0x010101;
+                }
+                continue;
+            }
+            for( int x = 0; x < w; x++ )
+            {
+                d[q + x] = alpha | PLPRuntimeKernels.luma(s[p + x]) * 0x010101;
+            }
+        }
+    }
+
+    // Gray from INT_RGB or INT_ARGB into TYPE_BYTE_GRAY
+    private static void grayIntsToLevels(BufferedImage a, BufferedImage b, int arg, BufferedImage dest, int y0, int y1,
+                                         int w)
+    {
+        WritableRaster source = a.getRaster();
+        WritableRaster target = dest.getRaster();
+        ComponentSampleModel tm = ( ComponentSampleModel ) target.getSampleModel();
+        int[] s = (( DataBufferInt ) source.getDataBuffer()).getData();
+        byte[] d = (( DataBufferByte ) target.getDataBuffer()).getData();
+        for( int y = y0; y < y1; y++ )
+        {
+            int p = PLPRuntimeRaster.intOffset(source, y);
+            int q = PLPRuntimeRaster.byteOffset(target, tm, y);
+            for( int x = 0; x < w; x++ )
+            {
+                d[q + x] = ( byte ) PLPRuntimeKernels.luma(s[p + x]);
+            }
+        }
+    }
+
+    // Gray between 3BYTE_BGR or 4BYTE_ABGR images of the same type
+    private static void grayBytes(BufferedImage a, BufferedImage b, int arg, BufferedImage dest, int y0, int y1, int w)
+    {
+        WritableRaster source = a.getRaster();
+        WritableRaster target = dest.getRaster();
+        ComponentSampleModel sm = ( ComponentSampleModel ) source.getSampleModel();
+        ComponentSampleModel tm = ( ComponentSampleModel ) target.getSampleModel();
+        byte[] s = (( DataBufferByte ) source.getDataBuffer()).getData();
+        byte[] d = (( DataBufferByte ) target.getDataBuffer()).getData();
+        int[] sb = sm.getBandOffsets();
+        int[] db = tm.getBandOffsets();
+        int stride = sm.getPixelStride();
+        boolean alpha = db.length > 3;
+        for( int y = y0; y < y1; y++ )
+        {
+            int p = PLPRuntimeRaster.byteOffset(source, sm, y);
+            int q = PLPRuntimeRaster.byteOffset(target, tm, y);
+            for( int x = 0; x < w; x++, p += stride, q += stride )
+            {
+                byte gray = ( byte ) luma(s, p, sb);
+                d[q + db[0]] = gray;
+                d[q + db[1]] = gray;
+                d[q + db[2]] = gray;
+                if( alpha )
+                {
+                    d[q + db[3]] = ( byte ) 0xFF;
+                }
+            }
+        }
+    }
+
+    // Gray from 3BYTE_BGR or 4BYTE_ABGR into TYPE_BYTE_GRAY
+    private static void grayBytesToLevels(BufferedImage a, BufferedImage b, int arg, BufferedImage dest, int y0, int y1,
+                                          int w)
+    {
+        WritableRaster source = a.getRaster();
+        WritableRaster target = dest.getRaster();
+        ComponentSampleModel sm = ( ComponentSampleModel ) source.getSampleModel();
+        ComponentSampleModel tm = ( ComponentSampleModel ) target.getSampleModel();
+        byte[] s = (( DataBufferByte ) source.getDataBuffer()).getData();
+        byte[] d = (( DataBufferByte ) target.getDataBuffer()).getData();
+        int[] sb = sm.getBandOffsets();
+        int stride = sm.getPixelStride();
+        for( int y = y0; y < y1; y++ )
+        {
+            int p = PLPRuntimeRaster.byteOffset(source, sm, y);
+            int q = PLPRuntimeRaster.byteOffset(target, tm, y);
+            for( int x = 0; x < w; x++, p += stride )
+            {
+                d[q + x] = ( byte ) luma(s, p, sb);
+            }
+        }
+    }
+
+    // PLPRuntimeKernels.luma of the pixel whose red, green and blue bytes are at p + bands[0..2]
+    private static int luma(byte[] data, int p, int[] bands)
+    {
+        return (((data[p + bands[0]] & 0xFF) * PLPRuntimeKernels.LUMA_RED) >> 16)
+            + (((data[p + bands[1]] & 0xFF) * PLPRuntimeKernels.LUMA_GREEN) >> 16)
+            + (((data[p + bands[2]] & 0xFF) * PLPRuntimeKernels.LUMA_BLUE) >> 16);
+    }
+
+    /**
+     * Any op between TYPE_BYTE_GRAY images. Level g reads as the pixel (g, g, g), every op treats
+     * the three channels alike, and a gray pixel is written back as its level, so the op can
+     * work on the levels themselves.
+     */
+    private static void levels(int op, BufferedImage a, BufferedImage b, int arg, BufferedImage dest, int y0, int y1,
+                               int w)
+    {
+        WritableRaster source = a.getRaster();
+        WritableRaster target = dest.getRaster();
+        WritableRaster other = b != null ? b.getRaster() : source;
+        ComponentSampleModel sm = ( ComponentSampleModel ) source.getSampleModel();
+        ComponentSampleModel tm = ( ComponentSampleModel ) target.getSampleModel();
+        ComponentSampleModel om = ( ComponentSampleModel ) other.getSampleModel();
+        byte[] s = (( DataBufferByte ) source.getDataBuffer()).getData();
+        byte[] d = (( DataBufferByte ) target.getDataBuffer()).getData();
+        byte[] o = (( DataBufferByte ) other.getDataBuffer()).getData();
+        for( int y = y0; y < y1; y++ )
+        {
+            int p = PLPRuntimeRaster.byteOffset(source, sm, y);
+            int q = PLPRuntimeRaster.byteOffset(target, tm, y);
+            int r = PLPRuntimeRaster.byteOffset(other, om, y);
+            switch( op )
+            {
+                case ADD:
+                    for( int x = 0; x < w; x++ )
+                    {
+                        d[q + x] = ( byte ) PLPRuntimeKernels.clamp((s[p + x] & 0xFF) + (o[r + x] & 0xFF));
+                    }
+                    break;
+                case SUB:
+                    for( int x = 0; x < w; x++ )
+                    {
+                        d[q + x] = ( byte ) PLPRuntimeKernels.clamp((s[p + x] & 0xFF) - (o[r + x] & 0xFF));
+                    }
+                    break;
+                case MUL:
+                    for( int x = 0; x < w; x++ )
+                    {
+                        d[q + x] = ( byte ) PLPRuntimeKernels.clamp((s[p + x] & 0xFF) * arg);
+                    }
+                    break;
+                case DIV:
+                {
+                    int[] table = PLPRuntimeKernels.divTable(arg);
+                    for( int x = 0; x < w; x++ )
+                    {
+                        d[q + x] = ( byte ) table[s[p + x] & 0xFF];
+                    }
+                    break;
+                }
+                case MOD:
+                {
+                    int[] table = PLPRuntimeKernels.modTable(arg);
+                    for( int x = 0; x < w; x++ )
+                    {
+                        d[q + x] = ( byte ) table[s[p + x] & 0xFF];
+                    }
+                    break;
+                }
+                case GRAY:
+                    for( int x = 0; x < w; x++ )
+                    {
+                        d[q + x] = ( byte ) PLPRuntimeKernels.luma((s[p + x] & 0xFF) * 0x010101);
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes the images of file and url parameters in the background, from the moment the
+ * program is constructed, so that reading and decoding them overlaps with whatever the program
+ * does before it first uses them, and with each other.
+ * <p>
+ * The generated constructor calls prefetch for every file or url parameter that
+ * LivenessVisitor found to be read as a whole image and never written. readFromFile and
+ * readFromURL first take the prefetched image, waiting for it if need be; later reads of the
+ * same source go through PLPRuntimeImageCache as usual. A prefetched file is used only if it
+ * has not changed since it was read. If prefetching fails, the read is done again on the
+ * calling thread, which reports the error.
+ * <p>
+ * A prefetch belongs to the program that started it: constructing a program prefetches its
+ * sources again, in place of what an earlier program left behind, and generated code calls
+ * discard when run ends, for the prefetches it never took.
+ * <p>
+ * Decoding runs on a pool of daemon threads, one per processor, so a program that never gets
+ * to its reads does not wait for them to exit. Prefetching can be turned off with the system
+ * property plp.runtime.prefetch or with setEnabled.
+ */
+public class PLPRuntimePrefetch
+{
+
+    public static final String JVMName = "cop5556sp17/PLPRuntimePrefetch";
+
+    public final static String prefetchFileSig = "(" + PLPRuntimeImageIO.FileDesc + ")V";
+
+    public final static String prefetchURLSig = "(" + PLPRuntimeImageIO.URLDesc + ")V";
+
+    public final static String discardSig = "()V";
+
+    private static volatile boolean enabled =
+        Boolean.parseBoolean(System.getProperty("plp.runtime.prefetch", "true"));
+
+    public static void setEnabled(boolean prefetch)
+    {
+        enabled = prefetch;
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    private static final class Prefetched
+    {
+        final BufferedImage image;
+        // Of files, what identified the version read; null for urls
+        final String validator;
+
+        Prefetched(BufferedImage image, String validator)
+        {
+            this.image = image;
+            this.validator = validator;
+        }
+    }
+
+    private static final class Threads
+    {
+        private static final AtomicInteger count = new AtomicInteger();
+
+        static final ExecutorService pool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), task ->
+            {
+                Thread thread = new Thread(task, "plp-prefetch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    // Prefetches not taken yet, by source
+    private static final Map<String, Future<Prefetched>> pending = new HashMap<>();
+
+    private static long started = 0;
+    private static long used = 0;
+
+    /**
+     * Starts decoding the image in f.
+     */
+    public static void prefetch(File f)
+    {
+        start("file:" + f.getPath(), () ->
+        {
+            String validator = PLPRuntimeImageCache.validator(f);
+            return new Prefetched(PLPRuntimeImageIO.load(f), validator);
+        });
+    }
+
+    /**
+     * Starts decoding the image at url.
+     */
+    public static void prefetch(URL url)
+    {
+        start(url.toExternalForm(), () -> new Prefetched(PLPRuntimeImageIO.load(url), null));
+    }
+
+    private static void start(String source, Callable<Prefetched> task)
+    {
+        if( !enabled )
+        {
+            return;
+        }
+        Future<Prefetched> previous;
+        synchronized( pending )
+        {
+            previous = pending.put(source, Threads.pool.submit(task));
+            started++;
+        }
+        if( previous != null )
+        {
+            drop(previous);
+        }
+    }
+
+    /**
+     * @return the image prefetched from f, waiting for it if need be, or null if there is none
+     * or f has changed since
+     */
+    static BufferedImage take(File f)
+    {
+        Prefetched prefetched = take("file:" + f.getPath());
+        if( prefetched == null )
+        {
+            return null;
+        }
+        try
+        {
+            if( PLPRuntimeImageCache.validator(f).equals(prefetched.validator) )
+            {
+                return used(prefetched.image);
+            }
+        }
+        catch( IOException e )
+        {
+            // Gone since; let the read report it
+        }
+        PLPRuntimeImagePool.release(prefetched.image);
+        return null;
+    }
+
+    /**
+     * @return the image prefetched from url, waiting for it if need be, or null if there is none
+     */
+    static BufferedImage take(URL url)
+    {
+        Prefetched prefetched = take(url.toExternalForm());
+        return prefetched == null ? null : used(prefetched.image);
+    }
+
+    private static Prefetched take(String source)
+    {
+        Future<Prefetched> future;
+        synchronized( pending )
+        {
+            future = pending.remove(source);
+        }
+        if( future == null )
+        {
+            return null;
+        }
+        try
+        {
+            Prefetched prefetched = future.get();
+            return prefetched.image == null ? null : prefetched;
+        }
+        catch( ExecutionException e )
+        {
+            return null;
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static BufferedImage used(BufferedImage image)
+    {
+        synchronized( pending )
+        {
+            used++;
+        }
+        return image;
+    }
+
+    /**
+     * @return number of prefetches started
+     */
+    public static long getStarted()
+    {
+        synchronized( pending )
+        {
+            return started;
+        }
+    }
+
+    /**
+     * @return number of prefetched images handed to reads
+     */
+    public static long getUsed()
+    {
+        synchronized( pending )
+        {
+            return used;
+        }
+    }
+
+    /**
+     * Drops the prefetches not taken yet, cancelling those that have not started.
+     */
+    public static void discard()
+    {
+        List<Future<Prefetched>> untaken;
+        synchronized( pending )
+        {
+            if( pending.isEmpty() )
+            {
+                return;
+            }
+            untaken = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for( Future<Prefetched> future : untaken )
+        {
+            drop(future);
+        }
+    }
+
+    // Cancels future, or hands its image back to the pool if it is done
+    private static void drop(Future<Prefetched> future)
+    {
+        if( future.cancel(false) || !future.isDone() )
+        {
+            // Left to the garbage collector once decoded
+            return;
+        }
+        try
+        {
+            PLPRuntimeImagePool.release(future.get().image);
+        }
+        catch( ExecutionException e )
+        {
+            // Nothing was decoded
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drops the prefetches not taken yet and resets the counters.
+     */
+    public static void clear()
+    {
+        discard();
+        synchronized( pending )
+        {
+            started = 0;
+            used = 0;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package cop5556sp17;
+
+import java.awt.image.*;
+
+/**
+ * Row level access to the pixels of a BufferedImage.
+ * <p>
+ * Rows are exchanged as packed 0xAARRGGBB ints, the same layout getRGB/setRGB use.
+ * TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR and TYPE_BYTE_GRAY images
+ * are read and written through their DataBufferInt/DataBufferByte arrays directly, honouring
+ * the raster's offset and scanline stride, and off-heap images, see PLPRuntimeOffHeap, through
+ * their direct buffers. Any other layout falls back to the bulk getRGB/setRGB calls, which go
+ * through the color model.
+ * <p>
+ * The bytes of a TYPE_BYTE_GRAY image are taken as gray levels, the way image files store
+ * them: level g reads as (g, g, g), and a pixel is written as its luma rounded to the nearest
+ * level, so gray rows survive being written and read back. The color model would convert
+ * between its linear gray space and sRGB instead, which loses the darker levels.
+ */
+public class PLPRuntimeRaster
+{
+
+    /**
+     * Reads the first w pixels of row y of image into row.
+     *
+     * @param image source image
+     * @param y     row to read
+     * @param row   destination, at least w long
+     * @param w     number of pixels to read
+     */
+    public static void readRow(BufferedImage image, int y, int[] row, int w)
+    {
+        WritableRaster raster = image.getRaster();
+        switch( image.getType() )
+        {
+            case BufferedImage.TYPE_INT_RGB:
+            {
+                int[] data = (( DataBufferInt ) raster.getDataBuffer()).getData();
+                int off = intOffset(raster, y);
+                for( int x = 0; x < w; x++ )
+                {
+                    row[x] = 0xFF000000 | data[off + x];
+                }
+                break;
+            }
+            case BufferedImage.TYPE_INT_ARGB:
+            {
+                int[] data = (( DataBufferInt ) raster.getDataBuffer()).getData();
+                System.arraycopy(data, intOffset(raster, y), row, 0, w);
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            {
+                ComponentSampleModel sm = ( ComponentSampleModel ) raster.getSampleModel();
+                byte[] data = (( DataBufferByte ) raster.getDataBuffer()).getData();
+                int[] bands = sm.getBandOffsets();
+                int stride = sm.getPixelStride();
+                int p = byteOffset(raster, sm, y);
+                for( int x = 0; x < w; x++, p += stride )
+                {
+                    row[x] = 0xFF000000
+                        | (data[p + bands[0]] & 0xFF) << 16
+                        | (data[p + bands[1]] & 0xFF) << 8
+                        | (data[p + bands[2]] & 0xFF);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            {
+                ComponentSampleModel sm = ( ComponentSampleModel ) raster.getSampleModel();
+                byte[] data = (( DataBufferByte ) raster.getDataBuffer()).getData();
+                int[] bands = sm.getBandOffsets();
+                int stride = sm.getPixelStride();
+                int p = byteOffset(raster, sm, y);
+                for( int x = 0; x < w; x++, p += stride )
+                {
+                    row[x] = (data[p + bands[3]] & 0xFF) << 24
+                        | (data[p + bands[0]] & 0xFF) << 16
+                        | (data[p + bands[1]] & 0xFF) << 8
+                        | (data[p + bands[2]] & 0xFF);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY:
+            {
+                ComponentSampleModel sm = ( ComponentSampleModel ) raster.getSampleModel();
+                byte[] data = (( DataBufferByte ) raster.getDataBuffer()).getData();
+                int p = byteOffset(raster, sm, y);
+                for( int x = 0; x < w; x++ )
+                {
+                    row[x] = 0xFF000000 | (data[p + x] & 0xFF) * 0x010101;
+                }
+                break;
+            }
+            default:
+                if( raster.getDataBuffer() instanceof PLPRuntimeOffHeap.Pixels )
+                {
+                    (( PLPRuntimeOffHeap.Pixels ) raster.getDataBuffer()).read(intOffset(raster, y), row, w);
+                    if( !image.getColorModel().hasAlpha() )
+                    {
+                        for( int x = 0; x < w; x++ )
+                        {
+                            row[x] |= 0xFF000000;
+                        }
+                    }
+                    break;
+                }
+                image.getRGB(0, y, w, 1, row, 0, w);
+                break;
+        }
+    }
+
+    /**
+     * Writes the first w entries of row into row y of image.
+     *
+     * @param image destination image
+     * @param y     row to write
+     * @param row   packed 0xAARRGGBB pixels, at least w long
+     * @param w     number of pixels to write
+     */
+    public static void writeRow(BufferedImage image, int y, int[] row, int w)
+    {
+        WritableRaster raster = image.getRaster();
+        switch( image.getType() )
+        {
+            case BufferedImage.TYPE_INT_RGB:
+            {
+                int[] data = (( DataBufferInt ) raster.getDataBuffer()).getData();
+                int off = intOffset(raster, y);
+                for( int x = 0; x < w; x++ )
+                {
+                    data[off + x] = row[x] & 0xFFFFFF;
+                }
+                break;
+            }
+            case BufferedImage.TYPE_INT_ARGB:
+            {
+                int[] data = (( DataBufferInt ) raster.getDataBuffer()).getData();
+                System.arraycopy(row, 0, data, intOffset(raster, y), w);
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            {
+                ComponentSampleModel sm = ( ComponentSampleModel ) raster.getSampleModel();
+                byte[] data = (( DataBufferByte ) raster.getDataBuffer()).getData();
+                int[] bands = sm.getBandOffsets();
+                int stride = sm.getPixelStride();
+                int p = byteOffset(raster, sm, y);
+                for( int x = 0; x < w; x++, p += stride )
+                {
+                    int rgb = row[x];
+                    data[p + bands[0]] = ( byte ) (rgb >> 16);
+                    data[p + bands[1]] = ( byte ) (rgb >> 8);
+                    data[p + bands[2]] = ( byte ) rgb;
+                }
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            {
+                ComponentSampleModel sm = ( ComponentSampleModel ) raster.getSampleModel();
+                byte[] data = (( DataBufferByte ) raster.getDataBuffer()).getData();
+                int[] bands = sm.getBandOffsets();
+                int stride = sm.getPixelStride();
+                int p = byteOffset(raster, sm, y);
+                for( int x = 0; x < w; x++, p += stride )
+                {
+                    int argb = row[x];
+                    data[p + bands[0]] = ( byte ) (argb >> 16);
+                    data[p + bands[1]] = ( byte ) (argb >> 8);
+                    data[p + bands[2]] = ( byte ) argb;
+                    data[p + bands[3]] = ( byte ) (argb >>> 24);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY:
+            {
+                ComponentSampleModel sm = ( ComponentSampleModel ) raster.getSampleModel();
+                byte[] data = (( DataBufferByte ) raster.getDataBuffer()).getData();
+                int p = byteOffset(raster, sm, y);
+                for( int x = 0; x < w; x++ )
+                {
+                    int rgb = row[x];
+                    // The luma weights add up to 2^16, so a gray pixel keeps its level
+                    data[p + x] = ( byte ) ((((rgb >> 16) & 0xFF) * 19595 + ((rgb >> 8) & 0xFF) * 38470
+                        + (rgb & 0xFF) * 7471 + 0x8000) >> 16);
+                }
+                break;
+            }
+            default:
+                if( raster.getDataBuffer() instanceof PLPRuntimeOffHeap.Pixels )
+                {
+                    (( PLPRuntimeOffHeap.Pixels ) raster.getDataBuffer()).write(intOffset(raster, y), row, w);
+                    break;
+                }
+                image.setRGB(0, y, w, 1, row, 0, w);
+                break;
+        }
+    }
+
+    // Index of pixel (0, y) in the int[] backing a single pixel packed raster
+    static int intOffset(WritableRaster raster, int y)
+    {
+        SinglePixelPackedSampleModel sm = ( SinglePixelPackedSampleModel ) raster.getSampleModel();
+        return raster.getDataBuffer().getOffset()
+            + (y - raster.getSampleModelTranslateY()) * sm.getScanlineStride()
+            - raster.getSampleModelTranslateX();
+    }
+
+    // Index of the first sample of pixel (0, y) in the byte[] backing an interleaved raster
+    static int byteOffset(WritableRaster raster, ComponentSampleModel sm, int y)
+    {
+        return raster.getDataBuffer().getOffset()
+            + (y - raster.getSampleModelTranslateY()) * sm.getScanlineStride()
+            - raster.getSampleModelTranslateX() * sm.getPixelStride();
+    }
+}
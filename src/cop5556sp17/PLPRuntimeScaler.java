@@ -0,0 +1,324 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Enlarges and shrinks images by whole factors, in parallel bands of destination rows.
+ * <p>
+ * NEAREST replicates every source pixel into a factor x factor block: each source row is
+ * expanded once and then written factor times, so the work is little more than copying memory.
+ * BILINEAR places the source pixels at the centers of their blocks and interpolates between
+ * the four nearest of them with 8 bit fixed point weights, repeating the outermost pixels past
+ * the edges, like Java2D's bilinear AffineTransformOp. Each source row is interpolated
+ * horizontally once, and the destination rows between two of them are blended vertically.
+ * <p>
+ * The mode, BILINEAR by default, can be changed with the system property plp.runtime.scaleMode
+ * or with setMode.
+ * <p>
+ * Shrinking averages every factor x factor block of source pixels into one destination pixel,
+ * a box filter over the block's area, so no source pixel is skipped. Blocks cut off by the right
+ * and bottom edges are averaged over the pixels they do cover.
+ */
+public class PLPRuntimeScaler
+{
+
+    public static final String JVMName = "cop5556sp17/PLPRuntimeScaler";
+
+    public final static String scaleSig = "(" + PLPRuntimeImageIO.BufferedImageDesc + "I)"
+        + PLPRuntimeImageIO.BufferedImageDesc;
+
+    public final static String shrinkSig = scaleSig;
+
+    public enum Mode
+    {
+        /**
+         * Every destination pixel is a copy of the source pixel it lies in
+         */
+        NEAREST,
+        /**
+         * Every destination pixel is interpolated from the four source pixels around it
+         */
+        BILINEAR;
+
+        /**
+         * @return the mode named name, in any case, or otherwise if there is none
+         */
+        static Mode of(String name, Mode otherwise)
+        {
+            for( Mode mode : values() )
+            {
+                if( mode.name().equalsIgnoreCase(name.trim()) )
+                {
+                    return mode;
+                }
+            }
+            return otherwise;
+        }
+    }
+
+    // A mistyped plp.runtime.scaleMode falls back to BILINEAR rather than failing every scale
+    private static volatile Mode mode = Mode.of(System.getProperty("plp.runtime.scaleMode", "bilinear"), Mode.BILINEAR);
+
+    public static void setMode(Mode scaleMode)
+    {
+        mode = scaleMode;
+    }
+
+    public static Mode getMode()
+    {
+        return mode;
+    }
+
+    // Fixed point weights are in 1/256ths
+    private static final int BITS = 8;
+    private static final int ONE = 1 << BITS;
+
+    /**
+     * Returns image enlarged factor times in each direction, in an image of the same type.
+     *
+     * @param image
+     * @param factor
+     * @return
+     */
+    public static BufferedImage scale(BufferedImage image, int factor)
+    {
+        PLPRuntimeLog.globalLogAddEntry("scale");
+        if( factor < 1 )
+        {
+            throw new IllegalArgumentException("scale factor must be positive, was " + factor);
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int sw = Math.multiplyExact(w, factor);
+        int sh = Math.multiplyExact(h, factor);
+        BufferedImage dest = PLPRuntimeImagePool.acquireLike(image, sw, sh);
+        if( mode == Mode.NEAREST || factor == 1 )
+        {
+            nearest(image, dest, factor);
+        }
+        else
+        {
+            bilinear(image, dest, factor);
+        }
+        return dest;
+    }
+
+    /**
+     * Returns image shrunk factor times in each direction, rounding the size up, in an image of
+     * the same type.
+     *
+     * @param image
+     * @param factor
+     * @return
+     */
+    public static BufferedImage shrink(BufferedImage image, int factor)
+    {
+        PLPRuntimeLog.globalLogAddEntry("shrink");
+        if( factor < 1 )
+        {
+            throw new IllegalArgumentException("shrink factor must be positive, was " + factor);
+        }
+        return average(image, factor);
+    }
+
+    /**
+     * Shrinks image without logging it, for callers that have logged the shrink themselves.
+     */
+    static BufferedImage average(BufferedImage image, int factor)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int sw = (w + factor - 1) / factor;
+        int sh = (h + factor - 1) / factor;
+        BufferedImage dest = PLPRuntimeImagePool.acquireLike(image, sw, sh);
+        boolean alpha = image.getColorModel().hasAlpha();
+        PLPRuntimeParallel.forEachBand(sw, sh, (y0, y1) ->
+        {
+            int[] row = new int[w];
+            // Per channel, the sums over the blocks of one destination row
+            long[][] sums = new long[4][sw];
+            int[] out = new int[sw];
+            for( int y = y0; y < y1; y++ )
+            {
+                for( long[] sum : sums )
+                {
+                    Arrays.fill(sum, 0);
+                }
+                int top = y * factor;
+                int bottom = Math.min(h, top + factor);
+                for( int sy = top; sy < bottom; sy++ )
+                {
+                    PLPRuntimeRaster.readRow(image, sy, row, w);
+                    for( int x = 0, sx = 0; x < sw; x++ )
+                    {
+                        long a = 0;
+                        long r = 0;
+                        long g = 0;
+                        long b = 0;
+                        for( int end = Math.min(w, sx + factor); sx < end; sx++ )
+                        {
+                            int pixel = row[sx];
+                            a += pixel >>> 24;
+                            r += (pixel >>> 16) & 0xFF;
+                            g += (pixel >>> 8) & 0xFF;
+                            b += pixel & 0xFF;
+                        }
+                        sums[0][x] += a;
+                        sums[1][x] += r;
+                        sums[2][x] += g;
+                        sums[3][x] += b;
+                    }
+                }
+                int rows = bottom - top;
+                for( int x = 0; x < sw; x++ )
+                {
+                    long count = ( long ) rows * (Math.min(w, (x + 1) * factor) - x * factor);
+                    long half = count / 2;
+                    int a = alpha ? ( int ) ((sums[0][x] + half) / count) : 0xFF;
+                    int r = ( int ) ((sums[1][x] + half) / count);
+                    int g = ( int ) ((sums[2][x] + half) / count);
+                    int b = ( int ) ((sums[3][x] + half) / count);
+                    out[x] = a << 24 | r << 16 | g << 8 | b;
+                }
+                PLPRuntimeRaster.writeRow(dest, y, out, sw);
+            }
+        });
+        return dest;
+    }
+
+    private static void nearest(BufferedImage image, BufferedImage dest, int factor)
+    {
+        int w = image.getWidth();
+        int sw = dest.getWidth();
+        PLPRuntimeParallel.forEachBand(sw, dest.getHeight(), (y0, y1) ->
+        {
+            int[] row = new int[w];
+            int[] wide = new int[sw];
+            int loaded = -1;
+            for( int y = y0; y < y1; y++ )
+            {
+                int sy = y / factor;
+                if( sy != loaded )
+                {
+                    PLPRuntimeRaster.readRow(image, sy, row, w);
+                    for( int x = 0, dx = 0; x < w; x++ )
+                    {
+                        int pixel = row[x];
+                        for( int k = 0; k < factor; k++ )
+                        {
+                            wide[dx++] = pixel;
+                        }
+                    }
+                    loaded = sy;
+                }
+                PLPRuntimeRaster.writeRow(dest, y, wide, sw);
+            }
+        });
+    }
+
+    private static void bilinear(BufferedImage image, BufferedImage dest, int factor)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int sw = dest.getWidth();
+        boolean alpha = image.getColorModel().hasAlpha();
+
+        // Per destination column, the source columns on either side of it and the weight of the right one
+        int[] left = new int[sw];
+        int[] right = new int[sw];
+        int[] weights = new int[sw];
+        for( int x = 0; x < sw; x++ )
+        {
+            int position = position(x, factor);
+            int sx = position >> BITS;
+            left[x] = Math.max(0, Math.min(w - 1, sx));
+            right[x] = Math.max(0, Math.min(w - 1, sx + 1));
+            weights[x] = position & (ONE - 1);
+        }
+
+        PLPRuntimeParallel.forEachBand(sw, dest.getHeight(), (y0, y1) ->
+        {
+            int[] row = new int[w];
+            // Two source rows interpolated horizontally, red and blue in one array and alpha
+            // and green in the other, each channel in a 16 bit lane scaled by ONE
+            int[][] rb = new int[2][sw];
+            int[][] ag = new int[2][sw];
+            int[] rows = {-1, -1};
+            int[] out = new int[sw];
+            for( int y = y0; y < y1; y++ )
+            {
+                int position = position(y, factor);
+                int sy = position >> BITS;
+                int fy = position & (ONE - 1);
+                int top = Math.max(0, Math.min(h - 1, sy));
+                int bottom = Math.max(0, Math.min(h - 1, sy + 1));
+                int t = load(image, top, rows, row, rb, ag, left, right, weights);
+                int b = load(image, bottom, rows, row, rb, ag, left, right, weights);
+                int[] rbTop = rb[t];
+                int[] agTop = ag[t];
+                int[] rbBottom = rb[b];
+                int[] agBottom = ag[b];
+                int gy = ONE - fy;
+                for( int x = 0; x < sw; x++ )
+                {
+                    int p = rbTop[x];
+                    int q = rbBottom[x];
+                    int r = ((p >>> 16) * gy + (q >>> 16) * fy + (1 << 15)) >>> 16;
+                    int bl = ((p & 0xFFFF) * gy + (q & 0xFFFF) * fy + (1 << 15)) >>> 16;
+                    p = agTop[x];
+                    q = agBottom[x];
+                    int g = ((p & 0xFFFF) * gy + (q & 0xFFFF) * fy + (1 << 15)) >>> 16;
+                    int a = alpha ? ((p >>> 16) * gy + (q >>> 16) * fy + (1 << 15)) >>> 16 : 0xFF;
+                    out[x] = a << 24 | r << 16 | g << 8 | bl;
+                }
+                PLPRuntimeRaster.writeRow(dest, y, out, sw);
+            }
+        });
+    }
+
+    /**
+     * @return the position of the center of destination pixel i in source pixels, in fixed point,
+     * relative to the center of source pixel 0
+     */
+    private static int position(int i, int factor)
+    {
+        // (i + 1/2) / factor - 1/2, rounded down
+        return ( int ) Math.floorDiv((2L * i + 1 - factor) << (BITS - 1), factor);
+    }
+
+    /**
+     * Makes sure source row sy is interpolated horizontally in one of the two slots, reusing the
+     * slot of the other row it is asked for together with.
+     *
+     * @return the slot holding row sy
+     */
+    private static int load(BufferedImage image, int sy, int[] rows, int[] row, int[][] rb, int[][] ag,
+                            int[] left, int[] right, int[] weights)
+    {
+        for( int slot = 0; slot < 2; slot++ )
+        {
+            if( rows[slot] == sy )
+            {
+                return slot;
+            }
+        }
+        // Rows are asked for in increasing order, so the lower numbered one is done with
+        int slot = rows[0] < rows[1] ? 0 : 1;
+        rows[slot] = sy;
+        PLPRuntimeRaster.readRow(image, sy, row, row.length);
+        int[] rbRow = rb[slot];
+        int[] agRow = ag[slot];
+        for( int x = 0; x < rbRow.length; x++ )
+        {
+            int fx = weights[x];
+            int gx = ONE - fx;
+            int p = row[left[x]];
+            int q = row[right[x]];
+            // 8 bit channels times weights of at most ONE fit their 16 bit lanes
+            rbRow[x] = (p & 0xFF00FF) * gx + (q & 0xFF00FF) * fx;
+            agRow[x] = ((p >>> 8) & 0xFF00FF) * gx + ((q >>> 8) & 0xFF00FF) * fx;
+        }
+        return slot;
+    }
+}
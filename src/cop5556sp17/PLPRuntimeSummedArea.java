@@ -0,0 +1,244 @@
+package cop5556sp17;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Summed-area tables (integral images) of the channels of an image.
+ * <p>
+ * Entry (x, y) of the table of a channel holds the sum of that channel over all pixels above
+ * and to the left of (x, y), so the sum over any rectangle takes four lookups, whatever its size.
+ * The tables are built in parallel, first by rows, each row summing along itself, and then by
+ * columns, each column adding up the row sums above it.
+ * <p>
+ * Each table is an int[] of (width + 1) x (height + 1) entries, in which the sums are allowed to
+ * wrap around. The four-lookup difference is still exact modulo 2^32, so a rectangle whose true
+ * sum is below 2^32 comes out exactly; sum splits larger rectangles into strips that are not.
+ * This takes half the memory of long[] tables.
+ */
+public class PLPRuntimeSummedArea
+{
+
+    public static final int ALPHA = 0;
+    public static final int RED = 1;
+    public static final int GREEN = 2;
+    public static final int BLUE = 3;
+
+    // Largest number of pixels whose channel sum is certain to stay below 2^32
+    private static final long EXACT_PIXELS = 0xFFFFFFFFL / 255;
+
+    private final int width;
+    private final int height;
+
+    // Row length of the tables
+    private final int stride;
+
+    // Per channel, null for the alpha of opaque images
+    private final int[][] tables = new int[4][];
+
+    private PLPRuntimeSummedArea(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+    }
+
+    /**
+     * Builds the summed-area tables of every channel of image.
+     */
+    public static PLPRuntimeSummedArea of(BufferedImage image)
+    {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        PLPRuntimeSummedArea sat = new PLPRuntimeSummedArea(w, h);
+        int first = image.getColorModel().hasAlpha() ? ALPHA : RED;
+        int stride = sat.stride;
+        int[][] tables = sat.tables;
+        for( int c = first; c < 4; c++ )
+        {
+            tables[c] = new int[stride * (h + 1)];
+        }
+
+        PLPRuntimeParallel.forEachBand(w, h, (y0, y1) ->
+        {
+            int[] row = new int[w];
+            for( int y = y0; y < y1; y++ )
+            {
+                PLPRuntimeRaster.readRow(image, y, row, w);
+                int offset = (y + 1) * stride + 1;
+                for( int c = first; c < 4; c++ )
+                {
+                    int[] table = tables[c];
+                    int shift = 24 - 8 * c;
+                    int sum = 0;
+                    for( int x = 0; x < w; x++ )
+                    {
+                        sum += (row[x] >>> shift) & 0xFF;
+                        table[offset + x] = sum;
+                    }
+                }
+            }
+        });
+        PLPRuntimeParallel.forEachBand(h, stride, (x0, x1) ->
+        {
+            for( int c = first; c < 4; c++ )
+            {
+                int[] table = tables[c];
+                for( int y = 2; y <= h; y++ )
+                {
+                    int offset = y * stride;
+                    for( int x = x0; x < x1; x++ )
+                    {
+                        table[offset + x] += table[offset - stride + x];
+                    }
+                }
+            }
+        });
+        return sat;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * @param channel ALPHA, RED, GREEN or BLUE
+     * @return the sum of channel over the pixels (x, y) with x0 &lt;= x &lt; x1 and y0 &lt;= y &lt; y1,
+     * which must lie inside the image
+     */
+    public long sum(int channel, int x0, int y0, int x1, int y1)
+    {
+        int columns = x1 - x0;
+        if( columns <= 0 || y1 <= y0 )
+        {
+            return 0;
+        }
+        int[] table = tables[channel];
+        if( table == null )
+        {
+            // Opaque
+            return 255L * columns * (y1 - y0);
+        }
+        int rows = ( int ) Math.max(1, Math.min(y1 - y0, EXACT_PIXELS / columns));
+        long total = 0;
+        for( int y = y0; y < y1; y += rows )
+        {
+            int top = y * stride;
+            int bottom = Math.min(y1, y + rows) * stride;
+            int sum = table[bottom + x1] - table[top + x1] - table[bottom + x0] + table[top + x0];
+            total += sum & 0xFFFFFFFFL;
+        }
+        return total;
+    }
+
+    /**
+     * @return the mean of channel over the rectangle, rounded to the nearest integer
+     */
+    public int mean(int channel, int x0, int y0, int x1, int y1)
+    {
+        long area = ( long ) (x1 - x0) * (y1 - y0);
+        return area <= 0 ? 0 : ( int ) ((sum(channel, x0, y0, x1, y1) + area / 2) / area);
+    }
+
+    /**
+     * Sums channel over the (2 rx + 1) x (2 ry + 1) window centered on pixel (x, y), with the
+     * rows and columns past the edge of the image replaced by the nearest edge row or column.
+     */
+    public long windowSum(int channel, int x, int y, int rx, int ry)
+    {
+        // Inner part of the window, and how often the edge columns and rows repeat outside it
+        int x0 = Math.max(0, x - rx);
+        int x1 = Math.min(width, x + rx + 1);
+        int y0 = Math.max(0, y - ry);
+        int y1 = Math.min(height, y + ry + 1);
+        long left = Math.max(0, rx - x);
+        long right = Math.max(0, ( long ) x + rx - (width - 1));
+        long top = Math.max(0, ry - y);
+        long bottom = Math.max(0, ( long ) y + ry - (height - 1));
+
+        long total = sum(channel, x0, y0, x1, y1);
+        if( left > 0 )
+        {
+            total += left * sum(channel, 0, y0, 1, y1);
+        }
+        if( right > 0 )
+        {
+            total += right * sum(channel, width - 1, y0, width, y1);
+        }
+        if( top > 0 )
+        {
+            total += top * (sum(channel, x0, 0, x1, 1) + left * pixel(channel, 0, 0)
+                + right * pixel(channel, width - 1, 0));
+        }
+        if( bottom > 0 )
+        {
+            total += bottom * (sum(channel, x0, height - 1, x1, height) + left * pixel(channel, 0, height - 1)
+                + right * pixel(channel, width - 1, height - 1));
+        }
+        return total;
+    }
+
+    /**
+     * Computes windowSum(channel, x, y, rx, ry) for every x of row y at once, in O(width).
+     *
+     * @param columns scratch space of at least width + 1 entries
+     * @param out     receives the window sums, at least width long
+     */
+    public void windowSums(int channel, int y, int rx, int ry, long[] columns, long[] out)
+    {
+        int y0 = Math.max(0, y - ry);
+        int y1 = Math.min(height, y + ry + 1);
+        long top = Math.max(0, ry - y);
+        long bottom = Math.max(0, ( long ) y + ry - (height - 1));
+        int[] table = tables[channel];
+
+        // columns[x] is the sum of the window's rows over the columns left of x
+        if( table == null )
+        {
+            for( int x = 0; x <= width; x++ )
+            {
+                columns[x] = 255L * x * (2L * ry + 1);
+            }
+        }
+        else
+        {
+            int rows = ( int ) Math.max(1, Math.min(y1 - y0, EXACT_PIXELS / Math.max(1, width)));
+            for( int x = 0; x <= width; x++ )
+            {
+                columns[x] = top * (table[stride + x] & 0xFFFFFFFFL)
+                    + bottom * ((table[height * stride + x] - table[(height - 1) * stride + x]) & 0xFFFFFFFFL);
+            }
+            for( int ya = y0; ya < y1; ya += rows )
+            {
+                int a = ya * stride;
+                int b = Math.min(y1, ya + rows) * stride;
+                for( int x = 0; x <= width; x++ )
+                {
+                    columns[x] += (table[b + x] - table[a + x]) & 0xFFFFFFFFL;
+                }
+            }
+        }
+
+        long first = columns[1] - columns[0];
+        long last = columns[width] - columns[width - 1];
+        for( int x = 0; x < width; x++ )
+        {
+            int x0 = Math.max(0, x - rx);
+            int x1 = Math.min(width, x + rx + 1);
+            long left = Math.max(0, rx - x);
+            long right = Math.max(0, ( long ) x + rx - (width - 1));
+            out[x] = columns[x1] - columns[x0] + left * first + right * last;
+        }
+    }
+
+    // The value of channel at one pixel
+    private long pixel(int channel, int x, int y)
+    {
+        return sum(channel, x, y, x + 1, y + 1);
+    }
+}
@@ -92,7 +92,7 @@ public class Parser
             FIRST.put(Arg, new HashSet<>(Collections.singletonList(LPAREN)));
 
             FIRST.put(ImageOp, new HashSet<>(Arrays.asList(
-                OP_WIDTH, OP_HEIGHT, KW_SCALE
+                OP_WIDTH, OP_HEIGHT, KW_SCALE, KW_SHRINK, KW_CROP
             )));
 
             FIRST.put(FrameOp, new HashSet<>(Arrays.asList(
@@ -107,7 +107,7 @@ public class Parser
                 IDENT,
                 OP_BLUR, OP_GRAY, OP_CONVOLVE,
                 KW_SHOW, KW_HIDE, KW_MOVE, KW_XLOC, KW_YLOC,
-                OP_WIDTH, OP_HEIGHT, KW_SCALE
+                OP_WIDTH, OP_HEIGHT, KW_SCALE, KW_SHRINK, KW_CROP
             )));
 
             FIRST.put(ArrowOp, new HashSet<>(Arrays.asList(
@@ -129,7 +129,7 @@ public class Parser
                 IDENT,
                 OP_BLUR, OP_GRAY, OP_CONVOLVE,
                 KW_SHOW, KW_HIDE, KW_MOVE, KW_XLOC, KW_YLOC,
-                OP_WIDTH, OP_HEIGHT, KW_SCALE
+                OP_WIDTH, OP_HEIGHT, KW_SCALE, KW_SHRINK, KW_CROP
             )));
 
             FIRST.put(Dec, new HashSet<>(Arrays.asList(
@@ -372,7 +372,7 @@ public class Parser
                 KW_WHILE,
                 KW_IF,
                 IDENT, OP_BLUR, OP_GRAY, OP_CONVOLVE, KW_SHOW, KW_HIDE,
-                KW_MOVE, KW_XLOC, KW_YLOC, OP_WIDTH, OP_HEIGHT, KW_SCALE
+                KW_MOVE, KW_XLOC, KW_YLOC, OP_WIDTH, OP_HEIGHT, KW_SCALE, KW_SHRINK, KW_CROP
             ));
         }
 
@@ -522,7 +522,7 @@ public class Parser
      *      _arg         -> EPSILON | LPAREN _expression (   , _expression )* RPAREN
      *      _filterOp    -> OP_BLUR |OP_GRAY | OP_CONVOLVE
      *      _frameOp     -> KW_SHOW | KW_HIDE | KW_MOVE | KW_XLOC | KW_YLOC
-     *      _imageOp     -> OP_WIDTH | OP_HEIGHT | KW_SCALE
+     *      _imageOp     -> OP_WIDTH | OP_HEIGHT | KW_SCALE | KW_SHRINK | KW_CROP
      * </pre>
      *
      * @throws SyntaxException if the token sequence does not match definition
@@ -539,7 +539,7 @@ public class Parser
                 IDENT,
                 OP_BLUR, OP_GRAY, OP_CONVOLVE,
                 KW_SHOW, KW_HIDE, KW_MOVE, KW_XLOC, KW_YLOC,
-                OP_WIDTH, OP_HEIGHT, KW_SCALE
+                OP_WIDTH, OP_HEIGHT, KW_SCALE, KW_SHRINK, KW_CROP
             ));
         }
 
@@ -599,7 +599,7 @@ public class Parser
     /**
      * Matches a _imageOp pattern given a sequence of tokens, non terminals denoted with a '_' prefix
      * <pre>
-     *      _imageOp -> OP_WIDTH | OP_HEIGHT | KW_SCALE
+     *      _imageOp -> OP_WIDTH | OP_HEIGHT | KW_SCALE | KW_SHRINK | KW_CROP
      * </pre>
      *
      * @throws SyntaxException if the token sequence does not match definition
@@ -607,7 +607,7 @@ public class Parser
     private ImageOpChain _imageOp() throws SyntaxException
     {
         Token first = tok;
-        match(OP_WIDTH, OP_HEIGHT, KW_SCALE);
+        match(OP_WIDTH, OP_HEIGHT, KW_SCALE, KW_SHRINK, KW_CROP);
         Tuple argList = arg();
         return new ImageOpChain(first, argList);
     }
@@ -196,7 +196,10 @@ public class ParserTest
     @Test
     public void testChain() throws IllegalCharException, IllegalNumberException, SyntaxException
     {
-        String[] chains = {"a -> b", "a -> blur(3) -> convolve(1,2,3) -> xloc;", "width -> scale(2) -> a"};
+        String[] chains = {
+            "a -> b", "a -> blur(3) -> convolve(1,2,3) -> xloc;", "width -> scale(2) -> a", "u -> shrink(4) -> gray -> a",
+            "a -> crop(0, 0, w / 2, h) -> blur -> b"
+        };
 
         for( String chain : chains )
         {
@@ -369,7 +369,7 @@ public class ParserTestExhaustive
 
     private static class ImageOpGenerator implements Generator
     {
-        private static final String[] IMAGE_OPS = {" width ", " height ", " scale "};
+        private static final String[] IMAGE_OPS = {" width ", " height ", " scale ", " shrink ", " crop "};
         private int index = 0;
 
         @Override
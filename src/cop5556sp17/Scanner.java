@@ -72,6 +72,8 @@ public class Scanner
         KW_SHOW("show"),
         KW_MOVE("move"),
         KW_SCALE("scale"),
+        KW_SHRINK("shrink"),
+        KW_CROP("crop"),
         EOF("eof");
 
         Kind(String text)
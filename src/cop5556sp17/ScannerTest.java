@@ -675,12 +675,12 @@ public class ScannerTest
     public void testKeywords() throws IllegalCharException, IllegalNumberException
     {
         String input = "integer \n boolean \n image \n url \n file \n frame \n while \n if \n sleep \n " +
-            "screenheight \n screenwidth gray \n convolve \n blur \n scale width \n height xloc \n yloc " +
+            "screenheight \n screenwidth gray \n convolve \n blur \n scale shrink crop width \n height xloc \n yloc " +
             "\n hide \n show \n move";
         Scanner.Kind[] types = {
             KW_INTEGER, KW_BOOLEAN, KW_IMAGE, KW_URL, KW_FILE, KW_FRAME, KW_WHILE, KW_IF, OP_SLEEP, KW_SCREENHEIGHT,
-            KW_SCREENWIDTH, OP_GRAY, OP_CONVOLVE, OP_BLUR, KW_SCALE, OP_WIDTH, OP_HEIGHT, KW_XLOC, KW_YLOC, KW_HIDE,
-            KW_SHOW, KW_MOVE
+            KW_SCREENWIDTH, OP_GRAY, OP_CONVOLVE, OP_BLUR, KW_SCALE, KW_SHRINK, KW_CROP, OP_WIDTH, OP_HEIGHT, KW_XLOC,
+            KW_YLOC, KW_HIDE, KW_SHOW, KW_MOVE
         };
         HashSet<Scanner.Kind> keywordTypes = new HashSet<>((new Scanner("")).keyWordMap.values());
 
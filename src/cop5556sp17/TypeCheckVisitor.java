@@ -182,7 +182,7 @@ public class TypeCheckVisitor implements ASTVisitor
                 }
                 else if( chElem instanceof ImageOpChain )
                 {
-                    if( chElem.getFirstToken().isKind(Kind.KW_SCALE) )
+                    if( chElem.getFirstToken().isKind(Kind.KW_SCALE, Kind.KW_SHRINK, Kind.KW_CROP) )
                     {
                         binaryChain.setTypeName(TypeName.IMAGE);
                         return null;
@@ -196,7 +196,7 @@ public class TypeCheckVisitor implements ASTVisitor
                     {
                         throw new TypeCheckException(Parser.getErrorMessage(
                             chElem.getFirstToken(),
-                            Kind.KW_SCALE
+                            Kind.KW_SCALE, Kind.KW_SHRINK, Kind.KW_CROP
                         ));
                     }
                 }
@@ -427,7 +427,19 @@ public class TypeCheckVisitor implements ASTVisitor
     {
         int argc = filterOpChain.getArg().getExprList().size();
 
-        if( argc > 0 )
+        if( filterOpChain.getFirstToken().isKind(Kind.OP_BLUR) )
+        {
+            // blur optionally takes a radius
+            if( argc > 1 )
+            {
+                throw new TypeCheckException(String.format(
+                    "blur takes at most 1 argument, found %d at %s",
+                    argc,
+                    filterOpChain.getFirstToken().getLinePos()
+                ));
+            }
+        }
+        else if( argc > 0 )
         {
             throw new TypeCheckException(String.format(
                 "filter takes no arguments, found %d at %s",
@@ -730,6 +742,28 @@ public class TypeCheckVisitor implements ASTVisitor
                 }
                 imageOpChain.setTypeName(TypeName.IMAGE);
                 break;
+            case KW_SHRINK:
+                if( argc != 1 )
+                {
+                    throw new TypeCheckException(String.format(
+                        "keyword shrink takes 1 argument, found %d at %s",
+                        argc,
+                        imageOpChain.getFirstToken().getLinePos()
+                    ));
+                }
+                imageOpChain.setTypeName(TypeName.IMAGE);
+                break;
+            case KW_CROP:
+                if( argc != 4 )
+                {
+                    throw new TypeCheckException(String.format(
+                        "keyword crop takes 4 arguments, found %d at %s",
+                        argc,
+                        imageOpChain.getFirstToken().getLinePos()
+                    ));
+                }
+                imageOpChain.setTypeName(TypeName.IMAGE);
+                break;
             default:
                 // More parser bugs
                 // The gift that keeps on giving!
@@ -19,6 +19,7 @@ import static cop5556sp17.AST.Type.TypeName.BOOLEAN;
 import static cop5556sp17.AST.Type.TypeName.INTEGER;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TypeCheckVisitorTest
 {
@@ -568,6 +569,103 @@ public class TypeCheckVisitorTest
         }
     }
 
+    @Test
+    public void testBlurRadius() throws Exception
+    {
+        String[] inputs = {
+            "p url u {image i \n u -> i -> blur(3) -> i;}",
+            "p url u, integer r {image i \n u -> i -> blur(r * 2 + 1) -> blur -> i;}"
+        };
+        for( String input : inputs )
+        {
+            (new TestRunner(input, null)).test();
+        }
+    }
+
+    @Test
+    public void testBlurRadiusError() throws Exception
+    {
+        String[] inputs = {
+            "p url u {image i \n u -> i -> blur(1, 2) -> i;}"
+        };
+        for( String input : inputs )
+        {
+            thrown.expect(TypeCheckVisitor.TypeCheckException.class);
+            (new TestRunner(input, null)).test();
+        }
+    }
+
+    @Test
+    public void testBlurRadiusTypeError() throws Exception
+    {
+        String[] inputs = {
+            "p url u {image i \n u -> i -> blur(true) -> i;}"
+        };
+        for( String input : inputs )
+        {
+            thrown.expect(TypeCheckVisitor.TypeCheckException.class);
+            (new TestRunner(input, null)).test();
+        }
+    }
+
+    @Test
+    public void testFilterArgumentError() throws Exception
+    {
+        String[] inputs = {
+            "p url u {image i \n u -> i -> convolve(3) -> i;}",
+            "p url u {image i \n u -> i -> gray(1) -> i;}"
+        };
+        for( String input : inputs )
+        {
+            thrown.expect(TypeCheckVisitor.TypeCheckException.class);
+            (new TestRunner(input, null)).test();
+        }
+    }
+
+    @Test
+    public void testShrinkArgumentError() throws Exception
+    {
+        String[] inputs = {
+            "p url u {image i \n u -> shrink -> i;}",
+            "p url u {image i \n u -> i -> shrink(2, 2) -> i;}"
+        };
+        // thrown.expect would end the test at the first input
+        for( String input : inputs )
+        {
+            try
+            {
+                (new TestRunner(input, null)).test();
+                fail("no TypeCheckException for " + input);
+            }
+            catch( TypeCheckVisitor.TypeCheckException e )
+            {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testCropArgumentError() throws Exception
+    {
+        String[] inputs = {
+            "p url u {image i \n u -> i -> crop(0, 0, 10) -> i;}",
+            "p url u {image i \n u -> i -> crop(0, 0, 10, true) -> i;}"
+        };
+        // thrown.expect would end the test at the first input
+        for( String input : inputs )
+        {
+            try
+            {
+                (new TestRunner(input, null)).test();
+                fail("no TypeCheckException for " + input);
+            }
+            catch( TypeCheckVisitor.TypeCheckException e )
+            {
+                // Expected
+            }
+        }
+    }
+
     @Test
     public void testProgram() throws Exception
     {